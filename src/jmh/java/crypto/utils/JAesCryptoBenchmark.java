@@ -0,0 +1,26 @@
+package crypto.utils;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * AES，key長度128 / 192 / 256
+ */
+public class JAesCryptoBenchmark extends JCryptoBenchmarkBase {
+    @Param({"128", "192", "256"})
+    public int keySize;
+
+    @Override
+    protected String getAlgorithm() {
+        return "AES";
+    }
+
+    @Override
+    protected int getKeySize() {
+        return keySize;
+    }
+
+    @Override
+    protected int getIvSize() {
+        return 16;
+    }
+}
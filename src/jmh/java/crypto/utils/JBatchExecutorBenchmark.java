@@ -0,0 +1,128 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 大量小檔案時，固定數量的platform thread與每個檔案一個virtual thread的比較
+ *
+ * virtual thread需要Java 21，以 -Pjmh.jvm 指定執行benchmark的JVM，
+ * 舊版JVM上VIRTUAL會退回platform thread (見 [JBatchExecutor.virtual])
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JBatchExecutorBenchmark {
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String executorMode;
+
+    @Param({"2000"})
+    public int fileCount;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    private final JCipherTransformation cipherTransformation = new JCipherTransformation("AES", "CTR", "NoPadding", 16);
+    private SecretKey secretKey;
+    private byte[] iv;
+    private Path directory;
+    private File[] plainFiles, encryptedFiles;
+    private JBatchExecutor batchExecutor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128, new SecureRandom());
+        secretKey = keyGen.generateKey();
+        iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+
+        directory = Files.createTempDirectory("aes2-jmh-batch");
+        plainFiles = new File[fileCount];
+        encryptedFiles = new File[fileCount];
+        Random random = new Random(fileCount);
+        byte[] payload = new byte[fileSize];
+        for (int i = 0; i < fileCount; i++) {
+            random.nextBytes(payload);
+            plainFiles[i] = directory.resolve(i + ".bin").toFile();
+            encryptedFiles[i] = directory.resolve(i + ".bin.enc").toFile();
+            Files.write(plainFiles[i].toPath(), payload);
+        }
+
+        batchExecutor = "VIRTUAL".equals(executorMode) ? JBatchExecutor.virtual() : new JBatchExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        batchExecutor.shutdown();
+        for (int i = 0; i < fileCount; i++) {
+            Files.deleteIfExists(plainFiles[i].toPath());
+            Files.deleteIfExists(encryptedFiles[i].toPath());
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * 以JCryptoUtils.encrypt加密所有檔案，等待全部完成
+     */
+    @Benchmark
+    public int encryptAll() throws Exception {
+        CountDownLatch remaining = new CountDownLatch(fileCount);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int i = 0; i < fileCount; i++) {
+            File plainFile = plainFiles[i];
+            File encryptedFile = encryptedFiles[i];
+            batchExecutor.submit(
+                    () -> JCryptoUtils.encrypt(cipherTransformation, secretKey, iv, plainFile, encryptedFile),
+                    new JBatchExecutor.Listener() {
+                        @Override
+                        public void onStarted() {
+                        }
+
+                        @Override
+                        public void onFinished() {
+                            remaining.countDown();
+                        }
+
+                        @Override
+                        public void onFailed(Exception e) {
+                            failure.compareAndSet(null, e);
+                            remaining.countDown();
+                        }
+                    }
+            );
+        }
+        remaining.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return fileCount;
+    }
+}
@@ -0,0 +1,201 @@
+package crypto.utils;
+
+import enums.JIoModeEnum;
+import model.JCipherTransformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加解密benchmark的共用部分，子類別決定演算法與key長度
+ *
+ * 參數組合與JMainApp提供的選項相同，JCE不接受的組合(例如CTR搭配PKCS5Padding)會在setup時失敗，
+ * 因為build.gradle設定了failOnError = false，其餘組合會繼續執行
+ * payloadSize都是16的倍數，讓NoPadding的ECB/CBC也能執行。
+ * GCM只有分段的container格式 (見 [JGcmSegmentEngine])，encrypt/decrypt改走encryptToContainer/decryptContainer，
+ * 其餘直接使用Cipher的benchmark在GCM時失敗
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class JCryptoBenchmarkBase {
+    @Param({"CTR", "ECB", "CBC", "CFB", "CFB8", "OFB", "OFB8", "GCM"})
+    public String operation;
+
+    @Param({"PKCS5Padding", "NoPadding", "ISO10126Padding"})
+    public String padding;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int payloadSize;
+
+    private JCipherTransformation cipherTransformation;
+    private boolean gcm;
+    private SecretKey secretKey;
+    private byte[] iv;
+    private String payloadText;
+    private byte[] encryptedPayload;
+    private ByteBuffer payloadBuffer, outputBuffer;
+    private Path directory;
+    private File plainFile, encryptedFile, outputFile;
+
+    /**
+     * 只有encryptWithBuffer使用的參數，避免其他benchmark跟著展開組合
+     */
+    @State(Scope.Thread)
+    public static class BufferParams {
+        @Param({"4096", "65536", "262144", "1048576"})
+        public int bufferSize;
+
+        @Param({"STREAM", "CHANNEL", "PIPELINED", "ASYNC"})
+        public String ioMode;
+    }
+
+    protected abstract String getAlgorithm();
+
+    protected abstract int getKeySize();
+
+    protected abstract int getIvSize();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cipherTransformation = new JCipherTransformation(getAlgorithm(), operation, padding, getIvSize());
+        // 不支援的組合在這裡就失敗，不進入測量
+        Cipher.getInstance(cipherTransformation.getText());
+        gcm = JGcmSegmentEngine.isSupported(cipherTransformation);
+
+        KeyGenerator keyGen = KeyGenerator.getInstance(getAlgorithm());
+        keyGen.init(getKeySize(), new SecureRandom());
+        secretKey = keyGen.generateKey();
+        iv = new byte[getIvSize()];
+        new SecureRandom().nextBytes(iv);
+
+        // 只用ASCII字元，讓tencrypt的String.getBytes()不受平台編碼影響，長度維持payloadSize
+        byte[] payload = new byte[payloadSize];
+        Random random = new Random(payloadSize);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(26));
+        }
+        payloadText = new String(payload, StandardCharsets.US_ASCII);
+
+        directory = Files.createTempDirectory("aes2-jmh");
+        plainFile = directory.resolve("plain.bin").toFile();
+        encryptedFile = directory.resolve("plain.bin.enc").toFile();
+        outputFile = directory.resolve("output.bin").toFile();
+        Files.write(plainFile.toPath(), payload);
+
+        if (gcm) {
+            JCryptoUtils.encryptToContainer(cipherTransformation, secretKey, iv, plainFile, encryptedFile);
+        } else {
+            JCryptoUtils.encrypt(cipherTransformation, secretKey, iv, plainFile, encryptedFile);
+            encryptedPayload = JCryptoUtils.tencrypt(cipherTransformation, secretKey, iv, payloadText);
+        }
+        payloadBuffer = ByteBuffer.wrap(payload);
+        outputBuffer = ByteBuffer.allocate(JCryptoStreams.getMaxOutputSize(cipherTransformation, payloadSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(plainFile.toPath());
+        Files.deleteIfExists(encryptedFile.toPath());
+        Files.deleteIfExists(outputFile.toPath());
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * JCryptoUtils.encrypt 預設路徑，GCM為encryptToContainer (每次產生新的nonce)
+     */
+    @Benchmark
+    public File encrypt() throws Exception {
+        if (gcm) {
+            JCryptoUtils.encryptToContainer(cipherTransformation, secretKey, iv, plainFile, outputFile);
+        } else {
+            JCryptoUtils.encrypt(cipherTransformation, secretKey, iv, plainFile, outputFile);
+        }
+        return outputFile;
+    }
+
+    /**
+     * JCryptoUtils.decrypt 預設路徑，GCM為decryptContainer (包含每個segment的驗證)
+     */
+    @Benchmark
+    public File decrypt() throws Exception {
+        if (gcm) {
+            JCryptoUtils.decryptContainer(secretKey, encryptedFile, outputFile);
+        } else {
+            JCryptoUtils.decrypt(cipherTransformation, secretKey, iv, encryptedFile, outputFile);
+        }
+        return outputFile;
+    }
+
+    /**
+     * 指定ioMode與bufferSize的加密迴圈，用來挑選預設值
+     */
+    @Benchmark
+    public File encryptWithBuffer(BufferParams bufferParams) throws Exception {
+        requireStreamable();
+        Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv);
+        JCipherFileIO.transform(cipher, plainFile, outputFile, JIoModeEnum.valueOf(bufferParams.ioMode), bufferParams.bufferSize);
+        return outputFile;
+    }
+
+    /**
+     * 記憶體內加密
+     */
+    @Benchmark
+    public byte[] tencrypt() throws Exception {
+        requireStreamable();
+        return JCryptoUtils.tencrypt(cipherTransformation, secretKey, iv, payloadText);
+    }
+
+    /**
+     * 記憶體內加密，輸入與輸出都是事先配置的ByteBuffer，與tencrypt比較String轉換與配置的成本
+     */
+    @Benchmark
+    public ByteBuffer encryptByteBuffer() throws Exception {
+        requireStreamable();
+        outputBuffer.clear();
+        JCryptoStreams.encrypt(cipherTransformation, secretKey, iv, payloadBuffer.duplicate(), outputBuffer);
+        return outputBuffer;
+    }
+
+    /**
+     * 記憶體內解密
+     */
+    @Benchmark
+    public String tdecrypt() throws Exception {
+        requireStreamable();
+        return JCryptoUtils.tdecrypt(cipherTransformation, secretKey, iv, encryptedPayload);
+    }
+
+    private void requireStreamable() {
+        if (gcm) {
+            throw new UnsupportedOperationException("GCM is only benchmarked through encrypt/decrypt (container format)");
+        }
+    }
+}
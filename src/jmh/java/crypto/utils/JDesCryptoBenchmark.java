@@ -0,0 +1,21 @@
+package crypto.utils;
+
+/**
+ * DES，key長度固定56
+ */
+public class JDesCryptoBenchmark extends JCryptoBenchmarkBase {
+    @Override
+    protected String getAlgorithm() {
+        return "DES";
+    }
+
+    @Override
+    protected int getKeySize() {
+        return 56;
+    }
+
+    @Override
+    protected int getIvSize() {
+        return 8;
+    }
+}
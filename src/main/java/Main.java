@@ -1,7 +1,22 @@
+import cli.JCryptoCli;
 import gui.javafx.JMainApp;
 
 public class Main {
-    public void Main(String... args){
+    /**
+     * 有參數時以命令列模式執行，不會載入JavaFX；沒有參數時開啟GUI
+     * @param args Array<String>
+     * @return Unit
+     */
+    public static void main(String... args){
+        if (args.length > 0) {
+            JCryptoCli.main(args);
+        } else {
+            launchGui();
+        }
+    }
+
+    // 分開成獨立method，命令列模式不會解析到JMainApp
+    private static void launchGui() {
         new JMainApp().runApp();
     }
 }
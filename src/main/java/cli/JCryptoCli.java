@@ -0,0 +1,502 @@
+package cli;
+
+import crypto.utils.JBatchExecutor;
+import crypto.utils.JCryptoSession;
+import crypto.utils.JEncryptionManifest;
+import crypto.utils.JKeyManifest;
+import crypto.utils.JProviderSelector;
+import model.JCancellationToken;
+import model.JCipherTransformation;
+import model.JTransferMetrics;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 命令列批次加解密，不載入任何JavaFX class，適合在cron或pipeline中呼叫
+ *
+ * 用法: encrypt|decrypt [options] <檔案|目錄|glob>...
+ * 目錄只處理第一層檔案，加上 -r 時遞迴處理；glob例如 "data/**.csv"，請加上引號避免shell展開。
+ * 走訪目錄與glob時，encrypt略過.enc檔，decrypt只處理.enc檔；指定 -o 時保留相對於走訪起點的子目錄
+ * 加上 -i 時以 [JEncryptionManifest] 略過上次執行後沒有變動的檔案
+ * 執行中按下Ctrl+C時取消所有工作，並刪除未完成的輸出檔
+ */
+public class JCryptoCli {
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join("\n",
+            "usage: encrypt|decrypt [options] <file|directory|glob>...",
+            "       providers            show which provider is used for each transformation (measured once and saved)",
+            "  -a, --algorithm <name>    AES (default) or DES",
+            "  -m, --mode <mode>         CTR (default), ECB, CBC, CFB, CFB8, OFB, OFB8, GCM",
+            "  -p, --padding <padding>   NoPadding (default), PKCS5Padding, ISO10126Padding",
+            "  -s, --key-size <bits>     key size used when generating a key (default 128, DES 56)",
+            "      --key <base64>        encoded key",
+            "      --key-file <file>     file containing the encoded key",
+            "      --iv <bytes>          comma separated signed bytes, ex: 1,-2,3 (default random);",
+            "                            only the first encrypted file uses it, the others get random ivs stored in their headers",
+            "      --iv-file <file>      file containing the iv in the same format",
+            "  -o, --output <dir>        output directory (default: next to each input file)",
+            "  -t, --threads <n>         files processed at the same time (default: cpu count)",
+            "      --virtual-threads     one virtual thread per file (Java 21+), limited by open files and heap instead of -t",
+            "  -r, --recursive           walk directories recursively",
+            "  -z, --compress            deflate before encrypting, already compressed formats are stored as is",
+            "  -i, --incremental         encrypt only files that are new or changed since the last run",
+            "      --manifest <file>     manifest used by --incremental (default: <output>/manifest.tsv)",
+            "      --progress <MB>       print progress of each file every <MB> megabytes",
+            "      --provider <name>     use this security provider (ex: SunJCE) instead of measuring; also -Daes2.provider=<name>",
+            "  -h, --help                show this message",
+            "",
+            "encrypt writes <name>.enc; when no key is given a new key is generated and recorded with each file's iv in keys.bin next to each .enc file.",
+            "decrypt reads the algorithm, mode and iv from the .enc header and writes <name> without .enc;",
+            "when no key is given the key is looked up in the keys.bin next to each .enc file."
+    );
+
+    private String command;
+    private String algorithm = "AES";
+    private String operation = "CTR";
+    private String padding = "NoPadding";
+    private int keySize = -1;
+    private String encodedKey = null;
+    private String ivString = null;
+    private File outputDirectory = null;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private boolean recursive = false;
+    private boolean virtualThreads = false;
+    private boolean compress = false;
+    private File manifestFile = null;
+    private long progressInterval = 0;
+    private String providerName = null;
+    private final List<String> inputs = new ArrayList<>();
+    // 輸入檔 (絕對路徑) -> 相對於走訪起點的路徑，-o 時在輸出目錄下保留相同的子目錄
+    private final Map<File, Path> relativePaths = new HashMap<>();
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * 解析參數並執行，回傳exit code
+     * @param args Array<String>
+     * @return Int 0: 全部成功, 1: 有檔案失敗, 2: 參數錯誤
+     */
+    public static int run(String[] args) {
+        JCryptoCli cli = new JCryptoCli();
+        try {
+            if (!cli.parse(args)) {
+                System.out.println(USAGE);
+                return EXIT_OK;
+            }
+            return cli.execute();
+        } catch (IllegalArgumentException e) {
+            System.err.printf("[ERROR] %s\n%s\n", e.getMessage(), USAGE);
+            return EXIT_USAGE;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.printf("[ERROR] %s\n", e.getLocalizedMessage());
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * @return Boolean 是否需要執行 (false表示只顯示說明)
+     */
+    private boolean parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    return false;
+                case "-a":
+                case "--algorithm":
+                    algorithm = requireValue(args, ++i, arg).toUpperCase();
+                    break;
+                case "-m":
+                case "--mode":
+                    operation = requireValue(args, ++i, arg).toUpperCase();
+                    break;
+                case "-p":
+                case "--padding":
+                    padding = requireValue(args, ++i, arg);
+                    break;
+                case "-s":
+                case "--key-size":
+                    keySize = parseInt(requireValue(args, ++i, arg), arg);
+                    break;
+                case "--key":
+                    encodedKey = requireValue(args, ++i, arg);
+                    break;
+                case "--key-file":
+                    encodedKey = readTrimmed(requireValue(args, ++i, arg));
+                    break;
+                case "--iv":
+                    ivString = requireValue(args, ++i, arg);
+                    break;
+                case "--iv-file":
+                    ivString = readTrimmed(requireValue(args, ++i, arg));
+                    break;
+                case "-o":
+                case "--output":
+                    outputDirectory = new File(requireValue(args, ++i, arg));
+                    break;
+                case "-t":
+                case "--threads":
+                    threadCount = parseInt(requireValue(args, ++i, arg), arg);
+                    if (threadCount < 1) {
+                        throw new IllegalArgumentException(arg + " must be positive");
+                    }
+                    break;
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
+                case "-r":
+                case "--recursive":
+                    recursive = true;
+                    break;
+                case "-z":
+                case "--compress":
+                    compress = true;
+                    break;
+                case "-i":
+                case "--incremental":
+                    if (manifestFile == null) {
+                        manifestFile = new File("");
+                    }
+                    break;
+                case "--manifest":
+                    manifestFile = new File(requireValue(args, ++i, arg));
+                    break;
+                case "--progress":
+                    progressInterval = parseInt(requireValue(args, ++i, arg), arg) * 1024L * 1024L;
+                    if (progressInterval <= 0) {
+                        throw new IllegalArgumentException(arg + " must be positive");
+                    }
+                    break;
+                case "--provider":
+                    providerName = requireValue(args, ++i, arg);
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("unknown option " + arg);
+                    }
+                    if (command == null) {
+                        command = arg;
+                    } else {
+                        inputs.add(arg);
+                    }
+            }
+        }
+
+        if (command == null) {
+            return false;
+        }
+        if ("providers".equals(command)) {
+            return true;
+        }
+        if (!"encrypt".equals(command) && !"decrypt".equals(command)) {
+            throw new IllegalArgumentException("unknown command " + command);
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("no input files");
+        }
+        if (keySize < 0) {
+            keySize = "DES".equals(algorithm) ? 56 : 128;
+        }
+        if (manifestFile != null) {
+            if (!"encrypt".equals(command)) {
+                throw new IllegalArgumentException("--incremental only applies to encrypt");
+            }
+            if (manifestFile.getPath().isEmpty()) {
+                if (outputDirectory == null) {
+                    throw new IllegalArgumentException("--incremental requires --output or --manifest");
+                }
+                manifestFile = new File(outputDirectory, JEncryptionManifest.DEFAULT_FILE_NAME);
+            }
+            if (encodedKey == null) {
+                System.err.println("[WARN] no key given, a new key is generated and every file will be encrypted again");
+            }
+        }
+        return true;
+    }
+
+    private int execute() throws IOException, GeneralSecurityException {
+        if (providerName != null) {
+            JProviderSelector.pin(providerName);
+        }
+        if ("providers".equals(command)) {
+            for (JProviderSelector.Calibration calibration : JProviderSelector.calibrateAll()) {
+                System.out.println(calibration);
+            }
+            return EXIT_OK;
+        }
+
+        List<File> files = collectFiles();
+        if (files.isEmpty()) {
+            System.err.println("[ERROR] no files matched");
+            return EXIT_FAILED;
+        }
+        Map<File, File> outputFiles = getOutputFiles(files);
+
+        JCipherTransformation cipherTransformation = new JCipherTransformation(algorithm, operation, padding, "DES".equals(algorithm) ? 8 : 16);
+        // 只量測這次使用的transformation，所有檔案都向最快的Provider取得Cipher；有--provider時不量測
+        JProviderSelector.calibrate(cipherTransformation.getText());
+        // key只產生/解析一次，所有檔案共用
+        JCryptoSession session = JCryptoSession.create(cipherTransformation, keySize, encodedKey == null ? "" : encodedKey, ivString == null ? "" : ivString);
+        if (session.isGeneratedKey() && "encrypt".equals(command)) {
+            // decrypt在每個.enc的目錄找keys.bin，-r 時每個子目錄各有一份
+            session.setRecordKeys(true);
+            System.out.printf("key saved to %s next to each encrypted file\n", JKeyManifest.DEFAULT_FILE_NAME);
+        }
+        SecretKey secretKey = session.getSecretKey();
+
+        JEncryptionManifest manifest = manifestFile == null ? null : JEncryptionManifest.load(manifestFile);
+
+        AtomicInteger processedCount = new AtomicInteger();
+        AtomicInteger failedCount = new AtomicInteger();
+        AtomicInteger skippedCount = new AtomicInteger();
+        JBatchExecutor batchExecutor = virtualThreads ? JBatchExecutor.virtual() : new JBatchExecutor(threadCount);
+        // Ctrl+C: 取消所有工作，等待處理中的檔案刪除未完成的輸出後才結束
+        JCancellationToken cancellationToken = new JCancellationToken();
+        Thread cancelHook = new Thread(() -> {
+            cancellationToken.cancel();
+            try {
+                batchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(cancelHook);
+        for (File file : files) {
+            JTransferMetrics metrics = new JTransferMetrics();
+            metrics.setCancellationToken(cancellationToken);
+            if (progressInterval > 0) {
+                metrics.setProgressListener((bytesProcessed, totalBytes) ->
+                        System.out.printf("[PROGRESS] %s %.1f / %.1f MB\n", file, bytesProcessed / (1024.0 * 1024.0), totalBytes / (1024.0 * 1024.0)), progressInterval);
+            }
+            File outputFile = outputFiles.get(file);
+            AtomicBoolean skipped = new AtomicBoolean(false);
+            batchExecutor.submit(
+                    () -> {
+                        if ("encrypt".equals(command)) {
+                            if (manifest != null && manifest.isUpToDate(file, outputFile, cipherTransformation, secretKey, compress)) {
+                                skipped.set(true);
+                                return;
+                            }
+                            session.encrypt(file, outputFile, metrics, compress);
+                            if (manifest != null) {
+                                manifest.record(file, cipherTransformation, secretKey, compress);
+                            }
+                        } else {
+                            session.decrypt(file, outputFile, metrics);
+                        }
+                    },
+                    new JBatchExecutor.Listener() {
+                        @Override
+                        public void onStarted() {
+                        }
+
+                        @Override
+                        public void onFinished() {
+                            if (skipped.get()) {
+                                skippedCount.incrementAndGet();
+                                System.out.printf("[SKIP] %s (unchanged)\n", file);
+                            } else {
+                                processedCount.incrementAndGet();
+                                System.out.printf("[OK] %s -> %s (%.1f MB/s)\n", file, outputFile, metrics.getThroughputMBps());
+                            }
+                        }
+
+                        @Override
+                        public void onFailed(Exception e) {
+                            failedCount.incrementAndGet();
+                            if (e instanceof CancellationException) {
+                                System.err.printf("[CANCELLED] %s\n", file);
+                            } else {
+                                System.err.printf("[ERROR] %s: %s\n", file, e.getLocalizedMessage());
+                            }
+                        }
+                    }
+            );
+        }
+
+        try {
+            batchExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(cancelHook);
+            } catch (IllegalStateException ignored) {
+                // 已經在結束程序中
+            }
+            if (manifest != null) {
+                manifest.save();
+            }
+            JKeyManifest.closeAll();
+        }
+
+        System.out.printf("%d file(s) processed, %d skipped, %d failed\n", processedCount.get(), skippedCount.get(), failedCount.get());
+        // 沒有回報結果的檔案也視為失敗
+        return failedCount.get() == 0 && processedCount.get() + skippedCount.get() == files.size() ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * 計算每個輸入檔的輸出檔並建立輸出目錄，兩個輸入寫到同一個輸出檔時不執行任何檔案
+     */
+    private Map<File, File> getOutputFiles(List<File> files) throws IOException {
+        Map<File, File> outputFiles = new LinkedHashMap<>();
+        Map<File, File> inputsByOutput = new HashMap<>();
+        for (File file : files) {
+            File outputFile = getOutputFile(file).getAbsoluteFile();
+            File other = inputsByOutput.put(outputFile, file);
+            if (other != null) {
+                throw new IOException(other + " and " + file + " would both be written to " + outputFile);
+            }
+            outputFiles.put(file, outputFile);
+        }
+        for (File outputFile : outputFiles.values()) {
+            Files.createDirectories(outputFile.getParentFile().toPath());
+        }
+        return outputFiles;
+    }
+
+    private File getOutputFile(File inputFile) {
+        File directory = inputFile.getAbsoluteFile().getParentFile();
+        if (outputDirectory != null) {
+            Path parent = relativePaths.get(inputFile).getParent();
+            directory = parent == null ? outputDirectory : new File(outputDirectory, parent.toString());
+        }
+        String name = inputFile.getName();
+        if ("encrypt".equals(command)) {
+            return new File(directory, name + ".enc");
+        }
+        return new File(directory, name.endsWith(".enc") ? name.substring(0, name.length() - 4) : name + ".dec");
+    }
+
+    /**
+     * 展開輸入的檔案、目錄與glob，去除重複
+     */
+    private List<File> collectFiles() throws IOException {
+        // 絕對路徑 -> 相對路徑，同一個檔案出現多次時以第一次為準
+        Map<Path, Path> paths = new LinkedHashMap<>();
+        for (String input : inputs) {
+            if (isGlob(input)) {
+                expandGlob(input, paths);
+            } else {
+                Path path = Paths.get(input);
+                if (Files.isDirectory(path)) {
+                    listDirectory(path, paths);
+                } else if (Files.isRegularFile(path)) {
+                    paths.putIfAbsent(path.toAbsolutePath().normalize(), path.getFileName());
+                } else {
+                    throw new IOException("file not found: " + input);
+                }
+            }
+        }
+        List<File> files = new ArrayList<>();
+        for (Map.Entry<Path, Path> entry : paths.entrySet()) {
+            File file = entry.getKey().toFile();
+            relativePaths.put(file, entry.getValue());
+            files.add(file);
+        }
+        return files;
+    }
+
+    private void listDirectory(Path directory, Map<Path, Path> paths) throws IOException {
+        try (Stream<Path> stream = recursive ? Files.walk(directory) : Files.list(directory)) {
+            for (Path path : stream.filter(Files::isRegularFile).filter(this::isWalkedInput).sorted().collect(Collectors.toList())) {
+                paths.putIfAbsent(path.toAbsolutePath().normalize(), directory.relativize(path));
+            }
+        }
+    }
+
+    /**
+     * 從glob前面不含萬用字元的目錄開始走訪，再以PathMatcher比對
+     */
+    private void expandGlob(String glob, Map<Path, Path> paths) throws IOException {
+        String normalized = glob.replace(File.separatorChar, '/');
+        int firstWildcard = indexOfWildcard(normalized);
+        int lastSeparator = normalized.lastIndexOf('/', firstWildcard);
+        Path base = Paths.get(lastSeparator < 0 ? "." : (lastSeparator == 0 ? "/" : normalized.substring(0, lastSeparator)));
+        String pattern = lastSeparator < 0 ? normalized : normalized.substring(lastSeparator + 1);
+        if (!Files.isDirectory(base)) {
+            return;
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        try (Stream<Path> stream = Files.walk(base)) {
+            for (Path path : stream.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(base.relativize(path)))
+                    .filter(this::isWalkedInput)
+                    .sorted()
+                    .collect(Collectors.toList())) {
+                paths.putIfAbsent(path.toAbsolutePath().normalize(), base.relativize(path));
+            }
+        }
+    }
+
+    /**
+     * 走訪目錄或glob找到的檔案是否要處理: decrypt只處理.enc，encrypt略過.enc與keys.bin；直接指定的檔案不受限制
+     */
+    private boolean isWalkedInput(Path path) {
+        String name = path.getFileName().toString();
+        if (name.equals(JKeyManifest.DEFAULT_FILE_NAME) || name.startsWith(JKeyManifest.DEFAULT_FILE_NAME + ".bak-")) {
+            return false;
+        }
+        boolean encrypted = name.endsWith(".enc");
+        return "decrypt".equals(command) == encrypted;
+    }
+
+    private static boolean isGlob(String input) {
+        return indexOfWildcard(input) >= 0;
+    }
+
+    private static int indexOfWildcard(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String readTrimmed(String path) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII).trim();
+    }
+
+    private static String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " requires a value");
+        }
+        return args[index];
+    }
+
+    private static int parseInt(String value, String option) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number: " + value);
+        }
+    }
+}
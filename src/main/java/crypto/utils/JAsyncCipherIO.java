@@ -0,0 +1,333 @@
+package crypto.utils;
+
+import model.JTransferMetrics;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 以AsynchronousFileChannel處理整個檔案，每個檔案同時有 [QUEUE_DEPTH] 個讀寫在進行
+ *
+ * 檔案切成bufferSize大小的chunk，讀取完成的chunk依順序送進cipher，加解密後直接發出寫入，
+ * 寫入完成的slot再拿去讀下一個chunk。讀寫與加解密都在完成通知的執行緒中進行，
+ * 所有檔案共用 [COMPLETION_WORKERS]，不需要每個檔案佔用一個執行緒。
+ * 沒有原生非同步檔案I/O的平台(Linux, macOS)上，JDK會在同一個pool中以阻塞方式執行讀寫。
+ * 失敗或中斷時不再發出新的讀寫，已發出的讀寫全部結束後才完成並關閉檔案，
+ * 因此完成後不會再有completion handler使用cipher或寫入輸出檔
+ * @property cipher Cipher 已init的Cipher，處理期間不可在其他地方使用
+ * @property inChannel AsynchronousFileChannel
+ * @property outChannel AsynchronousFileChannel
+ * @property bufferSize Int 每個chunk的大小
+ * @constructor
+ */
+public class JAsyncCipherIO {
+    public static final int QUEUE_DEPTH = 4;
+
+    static final ExecutorService COMPLETION_WORKERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "async-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Cipher cipher;
+    private final AsynchronousFileChannel inChannel;
+    private final AsynchronousFileChannel outChannel;
+    private final int bufferSize;
+    private final long inputLength;
+    private final long chunkCount;
+    private final JTransferMetrics metrics;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    // 以下欄位只在synchronized (this) 中存取
+    private final Slot[] readySlots;
+    private long nextChunkToRead = 0;
+    private long nextChunkToCipher = 0;
+    private long outputPosition = 0;
+    private int pendingWrites = 0;
+    private int pendingReads = 0;
+    // 最後一個chunk已經doFinal
+    private boolean finalized = false;
+    // 第一個發生的錯誤，設定後等進行中的讀寫結束再以它完成result
+    private Throwable failure = null;
+
+    /**
+     * 一個進行中的chunk，讀取完成後保留到輪到它加解密為止
+     */
+    private static class Slot {
+        final ByteBuffer in;
+        final ByteBuffer out;
+        long chunkIndex;
+
+        Slot(int bufferSize, int outputSize) {
+            this.in = ByteBuffer.allocate(bufferSize);
+            this.out = ByteBuffer.allocate(outputSize);
+        }
+    }
+
+    private JAsyncCipherIO(Cipher cipher, AsynchronousFileChannel inChannel, AsynchronousFileChannel outChannel, int bufferSize, JTransferMetrics metrics) throws IOException {
+        this.cipher = cipher;
+        this.inChannel = inChannel;
+        this.outChannel = outChannel;
+        this.bufferSize = bufferSize;
+        this.inputLength = inChannel.size();
+        this.chunkCount = (inputLength + bufferSize - 1) / bufferSize;
+        this.metrics = metrics;
+        this.readySlots = new Slot[QUEUE_DEPTH];
+    }
+
+    /**
+     * 處理整個檔案，等待完成後才回傳
+     * @param cipher Cipher 已init的Cipher
+     * @param inputFile File
+     * @param outputFile File
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transform(Cipher cipher, File inputFile, File outputFile, int bufferSize, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        JAsyncCipherIO io = open(cipher, inputFile, outputFile, bufferSize, metrics);
+        CompletableFuture<Void> completion = io.start();
+        try {
+            completion.get();
+        } catch (InterruptedException e) {
+            // 已發出的讀寫無法取消，停止發出新的讀寫並等它們結束 (檔案關閉) 後才回傳
+            io.fail(new InterruptedIOException("async io interrupted"));
+            completion.handle((ignored, ignoredException) -> null).join();
+            Thread.currentThread().interrupt();
+            throw new IOException("async io interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 開始處理整個檔案並立即回傳，完成或失敗時關閉兩個檔案
+     * @param cipher Cipher 已init的Cipher，完成前不可在其他地方使用，因此不能是呼叫者之後還會取用的 [JCipherCache] instance
+     * @param inputFile File
+     * @param outputFile File
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return CompletableFuture<Void>
+     */
+    public static CompletableFuture<Void> transformAsync(Cipher cipher, File inputFile, File outputFile, int bufferSize, JTransferMetrics metrics) throws IOException {
+        return open(cipher, inputFile, outputFile, bufferSize, metrics).start();
+    }
+
+    private static JAsyncCipherIO open(Cipher cipher, File inputFile, File outputFile, int bufferSize, JTransferMetrics metrics) throws IOException {
+        AsynchronousFileChannel inChannel = AsynchronousFileChannel.open(inputFile.toPath(),
+                new HashSet<OpenOption>(Arrays.asList(StandardOpenOption.READ)), COMPLETION_WORKERS);
+        AsynchronousFileChannel outChannel;
+        try {
+            outChannel = AsynchronousFileChannel.open(outputFile.toPath(),
+                    new HashSet<OpenOption>(Arrays.asList(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), COMPLETION_WORKERS);
+        } catch (IOException e) {
+            inChannel.close();
+            throw e;
+        }
+
+        try {
+            return new JAsyncCipherIO(cipher, inChannel, outChannel, bufferSize, metrics);
+        } catch (IOException e) {
+            inChannel.close();
+            outChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return CompletableFuture<Void> 所有讀寫結束並關閉兩個檔案後才完成
+     */
+    private CompletableFuture<Void> start() {
+        CompletableFuture<Void> completion = result.whenComplete((ignored, e) -> {
+            try {
+                inChannel.close();
+                outChannel.close();
+            } catch (IOException ignoredException) {
+                // 結果已經決定，關閉失敗不影響
+            }
+        });
+        int outputSize = cipher.getOutputSize(bufferSize) + cipher.getBlockSize();
+        synchronized (this) {
+            if (chunkCount == 0) {
+                // 空檔案仍需doFinal，讓padding模式輸出一個區塊
+                cipherAndWrite(new Slot(0, outputSize), true);
+            } else {
+                for (int i = 0; i < Math.min(QUEUE_DEPTH, chunkCount); i++) {
+                    readNext(new Slot(bufferSize, outputSize));
+                }
+            }
+            completeIfIdle();
+        }
+        return completion;
+    }
+
+    /**
+     * 記錄錯誤並停止發出新的讀寫，只保留第一個錯誤
+     * @param e Throwable
+     * @return Unit
+     */
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+        completeIfIdle();
+    }
+
+    /**
+     * 沒有進行中的讀寫，且已失敗或最後一個chunk已寫完時完成result，需在synchronized (this) 中呼叫
+     */
+    private void completeIfIdle() {
+        if (pendingReads > 0 || pendingWrites > 0) {
+            return;
+        }
+        if (failure != null) {
+            result.completeExceptionally(failure);
+        } else if (finalized) {
+            result.complete(null);
+        }
+    }
+
+    /**
+     * 以slot讀取下一個尚未讀取的chunk，需在synchronized (this) 中呼叫
+     */
+    private void readNext(Slot slot) {
+        if (failure != null || nextChunkToRead >= chunkCount) {
+            return;
+        }
+        slot.chunkIndex = nextChunkToRead++;
+        long position = slot.chunkIndex * bufferSize;
+        slot.in.clear();
+        slot.in.limit((int) Math.min(bufferSize, inputLength - position));
+        pendingReads++;
+        try {
+            inChannel.read(slot.in, position, slot, readHandler);
+        } catch (RuntimeException e) {
+            pendingReads--;
+            fail(e);
+        }
+    }
+
+    private final CompletionHandler<Integer, Slot> readHandler = new CompletionHandler<Integer, Slot>() {
+        @Override
+        public void completed(Integer readBytes, Slot slot) {
+            if (readBytes < 0) {
+                failed(new IOException("input file was truncated while reading"), slot);
+                return;
+            }
+            synchronized (JAsyncCipherIO.this) {
+                if (slot.in.hasRemaining() && failure == null) {
+                    // 讀到的比要求的少，繼續讀同一個chunk剩下的部分 (仍算同一個進行中的讀取)
+                    try {
+                        inChannel.read(slot.in, slot.chunkIndex * bufferSize + slot.in.position(), slot, this);
+                        return;
+                    } catch (RuntimeException e) {
+                        pendingReads--;
+                        fail(e);
+                        return;
+                    }
+                }
+                pendingReads--;
+                if (failure == null) {
+                    readySlots[(int) (slot.chunkIndex % QUEUE_DEPTH)] = slot;
+                    drain();
+                }
+                completeIfIdle();
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Slot slot) {
+            synchronized (JAsyncCipherIO.this) {
+                pendingReads--;
+                fail(e);
+            }
+        }
+    };
+
+    /**
+     * 依chunk順序將已讀取的slot送進cipher，需在synchronized (this) 中呼叫
+     */
+    private void drain() {
+        Slot slot;
+        while (failure == null && (slot = readySlots[(int) (nextChunkToCipher % QUEUE_DEPTH)]) != null && slot.chunkIndex == nextChunkToCipher) {
+            readySlots[(int) (nextChunkToCipher % QUEUE_DEPTH)] = null;
+            nextChunkToCipher++;
+            cipherAndWrite(slot, nextChunkToCipher == chunkCount);
+        }
+    }
+
+    private void cipherAndWrite(Slot slot, boolean last) {
+        try {
+            slot.in.flip();
+            int inputBytes = slot.in.remaining();
+            slot.out.clear();
+            if (last) {
+                cipher.doFinal(slot.in, slot.out);
+            } else {
+                cipher.update(slot.in, slot.out);
+            }
+            slot.out.flip();
+            if (metrics != null) metrics.addBytes(inputBytes);
+            finalized = last;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+
+        long position = outputPosition;
+        outputPosition += slot.out.remaining();
+        pendingWrites++;
+        write(slot, position, new CompletionHandler<Integer, long[]>() {
+            @Override
+            public void completed(Integer writtenBytes, long[] writePosition) {
+                synchronized (JAsyncCipherIO.this) {
+                    if (slot.out.hasRemaining() && failure == null) {
+                        writePosition[0] += writtenBytes;
+                        write(slot, writePosition[0], this);
+                        return;
+                    }
+                    pendingWrites--;
+                    readNext(slot);
+                    completeIfIdle();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, long[] writePosition) {
+                synchronized (JAsyncCipherIO.this) {
+                    pendingWrites--;
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 發出slot.out剩下部分的寫入，呼叫前pendingWrites已計入這次寫入，需在synchronized (this) 中呼叫
+     */
+    private void write(Slot slot, long position, CompletionHandler<Integer, long[]> handler) {
+        try {
+            outChannel.write(slot.out, position, new long[]{position}, handler);
+        } catch (RuntimeException e) {
+            pendingWrites--;
+            fail(e);
+        }
+    }
+}
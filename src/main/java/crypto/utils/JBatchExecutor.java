@@ -0,0 +1,183 @@
+package crypto.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多檔案加解密的背景工作池，worker數量固定，超出的工作排隊等待
+ *
+ * 大量小檔案時可改用 [virtual]，每個檔案一個virtual thread，同時進行的數量由Semaphore限制
+ * @property threadCount Int 同時處理的檔案數
+ * @constructor
+ */
+public class JBatchExecutor {
+    // 每個檔案工作同時開啟的檔案數 (輸入 + 輸出)
+    private static final int FILES_PER_JOB = 2;
+    // 每個檔案工作大約使用的記憶體: 輸入與輸出buffer，加上Cipher與virtual thread的stack
+    private static final long BYTES_PER_JOB = 2L * JCipherFileIO.DEFAULT_BUFFER_SIZE + 64 * 1024;
+    public static final int DEFAULT_OPEN_FILE_BUDGET = 1024;
+
+    private final ExecutorService executor;
+    // 只有virtual模式使用，null表示不限制
+    private final Semaphore permits;
+
+    /**
+     * 單一檔案的工作
+     */
+    public interface Job {
+        void run() throws Exception;
+    }
+
+    /**
+     * 工作狀態通知，於worker執行緒上呼叫，每個工作一定會呼叫onFinished或onFailed其中一個
+     */
+    public interface Listener {
+        void onStarted();
+
+        void onFinished();
+
+        void onFailed(Exception e);
+    }
+
+    public JBatchExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public JBatchExecutor(int threadCount) {
+        this(newPlatformPool(threadCount), null);
+    }
+
+    private JBatchExecutor(ExecutorService executor, Semaphore permits) {
+        this.executor = executor;
+        this.permits = permits;
+    }
+
+    /**
+     * 每個檔案工作使用一個virtual thread，預設以 [DEFAULT_OPEN_FILE_BUDGET] 個開啟的檔案與最大heap的1/4為上限
+     * @return JBatchExecutor
+     */
+    public static JBatchExecutor virtual() {
+        return virtual(DEFAULT_OPEN_FILE_BUDGET, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * 每個檔案工作使用一個virtual thread，同時進行的工作數同時受開啟檔案數與記憶體限制，
+     * 執行環境不支援virtual thread (Java 21以前) 時改用相同數量的platform thread。
+     * virtual thread不會重複使用，[JCipherCache] 在每個檔案都會重新取得Cipher
+     * @param openFileBudget Int 同時開啟的檔案數上限
+     * @param memoryBudget Long 所有工作的buffer可使用的bytes
+     * @return JBatchExecutor
+     */
+    public static JBatchExecutor virtual(int openFileBudget, long memoryBudget) {
+        int maxJobs = (int) Math.max(1, Math.min(openFileBudget / FILES_PER_JOB, memoryBudget / BYTES_PER_JOB));
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            System.out.printf("[WARN] virtual threads are not available on Java %s, using %d platform threads\n", System.getProperty("java.version"), maxJobs);
+            executor = newPlatformPool(maxJobs);
+        }
+        return new JBatchExecutor(executor, new Semaphore(maxJobs));
+    }
+
+    /**
+     * 目前的JVM是否支援virtual thread
+     * @return Boolean
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 專案仍以Java 8編譯，以reflection呼叫Java 21的Executors.newVirtualThreadPerTaskExecutor()
+     * @return ExecutorService 不支援時回傳null
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformPool(int threadCount) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "batch-worker-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * 加入工作，virtual模式下同時進行的工作已達上限時會等待，避免一次建立數百萬個thread
+     * @param job Job
+     * @param listener Listener
+     * @return Future
+     */
+    public Future<?> submit(Job job, Listener listener) {
+        if (permits != null) {
+            permits.acquireUninterruptibly();
+        }
+        try {
+            return executor.submit(() -> {
+                listener.onStarted();
+                try {
+                    job.run();
+                    listener.onFinished();
+                } catch (Exception e) {
+                    listener.onFailed(e);
+                } catch (Error e) {
+                    // OutOfMemoryError等也要通知，否則Future吞掉錯誤後畫面會停在處理中
+                    listener.onFailed(new ExecutionException(e));
+                    throw e;
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 停止所有工作，尚未開始的工作會被丟棄
+     * @return Unit
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 不再接受新工作，並等待所有已加入的工作結束
+     * @param timeout Long
+     * @param unit TimeUnit
+     * @return Boolean 是否在時間內結束
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+}
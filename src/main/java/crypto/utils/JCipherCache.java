@@ -0,0 +1,60 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 每個執行緒各自保存的Cipher快取，以transformation字串為key
+ *
+ * Cipher向 [JProviderSelector] 選出的Provider取得，量測完成後會換成最快的Provider。
+ * 取得的Cipher只屬於呼叫的執行緒，並且在同一執行緒下一次以相同transformation取用時會被重新init，
+ * 因此只能在單次呼叫內使用，不可保存或交給其他執行緒
+ */
+public class JCipherCache {
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * 取得目前執行緒的Cipher，第一次使用或選用的Provider改變時才建立
+     * @param cipherTransformation JCipherTransformation
+     * @return Cipher 尚未init
+     */
+    public static Cipher getInstance(JCipherTransformation cipherTransformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(cipherTransformation.getText());
+        Provider provider = JProviderSelector.getProvider(cipherTransformation.getText());
+        if (cipher == null || (provider != null && cipher.getProvider() != provider)) {
+            cipher = JProviderSelector.newCipher(cipherTransformation.getText());
+            ciphers.put(cipherTransformation.getText(), cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * 取得並以key/iv重新init快取中的Cipher
+     * @param cipherTransformation JCipherTransformation
+     * @param mode Int Cipher.ENCRYPT_MODE / Cipher.DECRYPT_MODE
+     * @param secretKey SecretKey
+     * @param iv ByteArray 不需要iv的模式(ECB)會忽略
+     * @return Cipher
+     */
+    public static Cipher getInitialized(JCipherTransformation cipherTransformation, int mode, SecretKey secretKey, byte[] iv) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        Cipher cipher = getInstance(cipherTransformation);
+
+        if (cipherTransformation.isNeedIv()) {
+            cipher.init(mode, secretKey, new IvParameterSpec(iv));
+        } else {
+            cipher.init(mode, secretKey);
+        }
+        return cipher;
+    }
+}
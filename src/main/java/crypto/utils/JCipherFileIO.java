@@ -0,0 +1,186 @@
+package crypto.utils;
+
+import enums.JIoModeEnum;
+import model.JTransferMetrics;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * 將已初始化的Cipher套用到整個檔案，負責加解密迴圈中的I/O
+ */
+public class JCipherFileIO {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    // 超過此大小的輸入檔改用MappedByteBuffer
+    private static final long MAPPED_THRESHOLD = 64L * 1024 * 1024;
+    // 每次映射的範圍，避免單一MappedByteBuffer超過2GB的限制
+    private static final long MAPPED_WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /**
+     * 依照ioMode處理整個檔案
+     * @param cipher Cipher 已init的Cipher
+     * @param inputFile File
+     * @param outputFile File
+     * @param ioMode JIoModeEnum
+     * @param bufferSize Int 每次送進cipher的資料量
+     * @return Unit
+     */
+    public static void transform(Cipher cipher, File inputFile, File outputFile, JIoModeEnum ioMode, int bufferSize) throws IOException, GeneralSecurityException {
+        transform(cipher, inputFile, outputFile, ioMode, bufferSize, null);
+    }
+
+    /**
+     * 依照ioMode處理整個檔案，並記錄處理進度
+     * @param cipher Cipher 已init的Cipher
+     * @param inputFile File
+     * @param outputFile File
+     * @param ioMode JIoModeEnum
+     * @param bufferSize Int 每次送進cipher的資料量
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transform(Cipher cipher, File inputFile, File outputFile, JIoModeEnum ioMode, int bufferSize, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        switch (ioMode) {
+            case STREAM:
+                transformStream(cipher, inputFile, outputFile, bufferSize, metrics);
+                break;
+            case CHANNEL:
+                transformChannel(cipher, inputFile, outputFile, bufferSize, metrics);
+                break;
+            case PIPELINED:
+                JCipherPipeline.transform(cipher, inputFile, outputFile, bufferSize, metrics);
+                break;
+            case ASYNC:
+                JAsyncCipherIO.transform(cipher, inputFile, outputFile, bufferSize, metrics);
+                break;
+        }
+    }
+
+    /**
+     * 以FileInputStream / FileOutputStream處理，輸入與輸出的byte[]皆重複使用
+     * @param cipher Cipher
+     * @param inputFile File
+     * @param outputFile File
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transformStream(Cipher cipher, File inputFile, File outputFile, int bufferSize, JTransferMetrics metrics) throws IOException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        try (FileInputStream inStream = new FileInputStream(inputFile);
+             FileOutputStream outStream = new FileOutputStream(outputFile)) {
+            transformStream(cipher, inStream, outStream, bufferSize, metrics);
+        }
+    }
+
+    /**
+     * 處理inStream到結尾的資料並寫到outStream，兩者皆不關閉
+     * @param cipher Cipher
+     * @param inStream InputStream
+     * @param outStream OutputStream
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transformStream(Cipher cipher, InputStream inStream, OutputStream outStream, int bufferSize, JTransferMetrics metrics) throws IOException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        byte[] buf = new byte[bufferSize];
+        byte[] outBuf = new byte[cipher.getOutputSize(bufferSize) + cipher.getBlockSize()];
+
+        int readBytes = inStream.read(buf);
+        while (readBytes >= 0) {
+            int cipherBytes = cipher.update(buf, 0, readBytes, outBuf);
+            outStream.write(outBuf, 0, cipherBytes);
+            if (metrics != null) metrics.addBytes(readBytes);
+            readBytes = inStream.read(buf);
+        }
+        int finalBytes = cipher.doFinal(outBuf, 0);
+        outStream.write(outBuf, 0, finalBytes);
+    }
+
+    /**
+     * 以FileChannel處理，輸入檔超過 [MAPPED_THRESHOLD] 時改用MappedByteBuffer，
+     * 並以Cipher.update(ByteBuffer, ByteBuffer)寫入重複使用的輸出buffer
+     * @param cipher Cipher
+     * @param inputFile File
+     * @param outputFile File
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transformChannel(Cipher cipher, File inputFile, File outputFile, int bufferSize, JTransferMetrics metrics) throws IOException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        try (FileChannel inChannel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            transformChannel(cipher, inChannel, 0, outChannel, bufferSize, metrics);
+        }
+    }
+
+    /**
+     * 處理inChannel從inOffset到檔尾的資料，輸出寫在outChannel目前的position之後
+     * @param cipher Cipher
+     * @param inChannel FileChannel
+     * @param inOffset Long
+     * @param outChannel FileChannel
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transformChannel(Cipher cipher, FileChannel inChannel, long inOffset, FileChannel outChannel, int bufferSize, JTransferMetrics metrics) throws IOException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        ByteBuffer outBuf = ByteBuffer.allocate(cipher.getOutputSize(bufferSize) + cipher.getBlockSize());
+        long size = inChannel.size();
+
+        if (size - inOffset >= MAPPED_THRESHOLD) {
+            for (long position = inOffset; position < size; position += MAPPED_WINDOW_SIZE) {
+                MappedByteBuffer mapped = inChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW_SIZE, size - position));
+                while (mapped.hasRemaining()) {
+                    // 暫時縮小limit，讓每次update的輸出不超過outBuf
+                    int stepSize = Math.min(bufferSize, mapped.capacity() - mapped.position());
+                    mapped.limit(mapped.position() + stepSize);
+                    updateAndWrite(cipher, mapped, outBuf, outChannel);
+                    mapped.limit(mapped.capacity());
+                    if (metrics != null) metrics.addBytes(stepSize);
+                }
+            }
+        } else {
+            ByteBuffer inBuf = ByteBuffer.allocate(bufferSize);
+            long position = inOffset;
+            int readBytes;
+            while ((readBytes = inChannel.read(inBuf, position)) >= 0) {
+                position += readBytes;
+                inBuf.flip();
+                updateAndWrite(cipher, inBuf, outBuf, outChannel);
+                inBuf.clear();
+                if (metrics != null) metrics.addBytes(readBytes);
+            }
+        }
+
+        outBuf.clear();
+        cipher.doFinal(EMPTY_BUFFER, outBuf);
+        writeFully(outBuf, outChannel);
+    }
+
+    private static void updateAndWrite(Cipher cipher, ByteBuffer input, ByteBuffer outBuf, FileChannel outChannel) throws IOException, ShortBufferException {
+        outBuf.clear();
+        cipher.update(input, outBuf);
+        writeFully(outBuf, outChannel);
+    }
+
+    private static void writeFully(ByteBuffer outBuf, FileChannel outChannel) throws IOException {
+        outBuf.flip();
+        while (outBuf.hasRemaining()) {
+            outChannel.write(outBuf);
+        }
+    }
+}
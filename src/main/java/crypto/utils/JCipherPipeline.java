@@ -0,0 +1,224 @@
+package crypto.utils;
+
+import model.JTransferMetrics;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 讀取 / 加解密 / 寫入 三段pipeline
+ *
+ * 讀取與寫入各在一個背景執行緒，加解密在呼叫者的執行緒，三者之間以固定數量的slot循環使用，
+ * 不會再配置新的buffer。CBC加密、CFB等無法切給多核心的模式，至少能讓磁碟I/O與運算同時進行
+ * @property cipher Cipher 已init的Cipher
+ * @property bufferSize Int 每個slot的輸入大小
+ * @constructor
+ */
+public class JCipherPipeline {
+    public static final int RING_SIZE = 4;
+    // 等待其他stage時每隔多久檢查一次是否有stage失敗
+    private static final long POLL_MILLIS = 100;
+
+    // 讀寫與壓縮這類會長時間阻塞的stage，不能與固定大小的 [JParallelCipherEngine.WORKERS] 共用，否則可能互相等待
+    static final ExecutorService STAGE_WORKERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Cipher cipher;
+    private final BlockingQueue<Slot> free = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<Slot> filled = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<Slot> ciphered = new ArrayBlockingQueue<>(RING_SIZE);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /**
+     * ring中的一格，輸入與輸出buffer一起循環使用
+     */
+    private static class Slot {
+        final ByteBuffer in;
+        final ByteBuffer out;
+        boolean last;
+
+        Slot(int bufferSize, int outputSize) {
+            this.in = ByteBuffer.allocate(bufferSize);
+            this.out = ByteBuffer.allocate(outputSize);
+        }
+    }
+
+    public JCipherPipeline(Cipher cipher, int bufferSize) {
+        this.cipher = cipher;
+        int outputSize = cipher.getOutputSize(bufferSize) + cipher.getBlockSize();
+        for (int i = 0; i < RING_SIZE; i++) {
+            free.add(new Slot(bufferSize, outputSize));
+        }
+    }
+
+    /**
+     * 處理整個檔案
+     * @param cipher Cipher 已init的Cipher
+     * @param inputFile File
+     * @param outputFile File
+     * @param bufferSize Int
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void transform(Cipher cipher, File inputFile, File outputFile, int bufferSize, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        try (FileChannel inChannel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new JCipherPipeline(cipher, bufferSize).run(inChannel, 0, outChannel, metrics);
+        }
+    }
+
+    /**
+     * 處理inChannel從inOffset到檔尾的資料，輸出寫在outChannel目前的position之後，
+     * 與 [JCipherFileIO.transformChannel] 相同，一個instance只能執行一次
+     * @param inChannel FileChannel
+     * @param inOffset Long
+     * @param outChannel FileChannel
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public void run(FileChannel inChannel, long inOffset, FileChannel outChannel, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        Future<?> reader = STAGE_WORKERS.submit(() -> runStage(() -> read(inChannel, inOffset)));
+        Future<?> writer = STAGE_WORKERS.submit(() -> runStage(() -> write(outChannel)));
+
+        try {
+            boolean last;
+            do {
+                Slot slot = take(filled);
+                // 交給下一個stage後slot可能馬上被重複使用，先取出需要的值
+                last = slot.last;
+                slot.in.flip();
+                int inputBytes = slot.in.remaining();
+                slot.out.clear();
+                if (last) {
+                    cipher.doFinal(slot.in, slot.out);
+                } else {
+                    cipher.update(slot.in, slot.out);
+                }
+                slot.out.flip();
+                ciphered.add(slot);
+                if (metrics != null) metrics.addBytes(inputBytes);
+            } while (!last);
+
+            waitFor(reader);
+            waitFor(writer);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // 不中斷stage，FileChannel被interrupt會關閉呼叫端的channel；
+            // 設定failure讓兩個stage在下一個slot前自行結束，等它們都停下來才拋出
+            failure.compareAndSet(null, e);
+            JParallelCipherEngine.awaitQuietly(Arrays.asList(reader, writer));
+            throw e;
+        }
+    }
+
+    /**
+     * 讀取stage，每個slot盡量讀滿，讓cipher一次處理較大的資料
+     */
+    private void read(FileChannel inChannel, long inOffset) throws IOException {
+        long position = inOffset;
+        boolean eof = false;
+        while (!eof) {
+            checkFailure();
+            Slot slot = take(free);
+            slot.in.clear();
+            while (slot.in.hasRemaining()) {
+                int readBytes = inChannel.read(slot.in, position);
+                if (readBytes < 0) {
+                    eof = true;
+                    break;
+                }
+                position += readBytes;
+            }
+            slot.last = eof;
+            filled.add(slot);
+        }
+    }
+
+    /**
+     * 寫入stage，寫完的slot回到free
+     */
+    private void write(FileChannel outChannel) throws IOException {
+        boolean last;
+        do {
+            Slot slot = take(ciphered);
+            checkFailure();
+            last = slot.last;
+            while (slot.out.hasRemaining()) {
+                outChannel.write(slot.out);
+            }
+            free.add(slot);
+        } while (!last);
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private Void runStage(Stage stage) throws Exception {
+        try {
+            stage.run();
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * 等待下一個slot，其他stage失敗時拋出該錯誤，避免永遠等待
+     */
+    private Slot take(BlockingQueue<Slot> queue) throws IOException {
+        try {
+            Slot slot;
+            while ((slot = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+            }
+            return slot;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("pipeline interrupted", e);
+        }
+    }
+
+    /**
+     * 其他stage或呼叫端已失敗時拋出該錯誤
+     */
+    private void checkFailure() throws IOException {
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("pipeline stage failed", e);
+        }
+    }
+
+    private static void waitFor(Future<?> future) throws IOException, GeneralSecurityException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("pipeline interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
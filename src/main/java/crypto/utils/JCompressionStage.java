@@ -0,0 +1,210 @@
+package crypto.utils;
+
+import model.JTransferMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 加密前的Deflate壓縮與解密後的解壓縮，在 [JCipherPipeline.STAGE_WORKERS] 的執行緒執行，與加解密迴圈以pipe串接
+ *
+ * 已經壓縮過的格式(圖片、影音、壓縮檔)再壓縮幾乎不會變小，由 [isCompressible] 依副檔名與檔案開頭的magic bytes略過
+ */
+public class JCompressionStage {
+    // 以速度為主，文字與log在最快的等級也能有不錯的壓縮率
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "ogg", "flac", "mp4", "m4a", "mkv", "mov", "avi", "webm",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+            "docx", "xlsx", "pptx", "pdf", "enc"
+    ));
+
+    private static final byte[][] COMPRESSED_MAGICS = new byte[][]{
+            {(byte) 0x89, 'P', 'N', 'G'},                  // png
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},       // jpg
+            {'G', 'I', 'F', '8'},                          // gif
+            {'P', 'K', 3, 4},                              // zip, jar, docx...
+            {0x1F, (byte) 0x8B},                           // gzip
+            {'B', 'Z', 'h'},                               // bzip2
+            {(byte) 0xFD, '7', 'z', 'X', 'Z', 0},          // xz
+            {'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C}, // 7z
+            {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD},        // zstd
+            {'A', 'E', 'S', '2', 'E', 'N', 'C', 0},        // 已加密的 [model.JContainerHeader]
+    };
+
+    /**
+     * 判斷檔案是否值得壓縮
+     * @param file File
+     * @return Boolean 已壓縮的格式回傳false
+     */
+    public static boolean isCompressible(File file) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+
+        byte[] head = new byte[12];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int readBytes;
+            while (length < head.length && (readBytes = in.read(head, length, head.length - length)) > 0) {
+                length += readBytes;
+            }
+        }
+        for (byte[] magic : COMPRESSED_MAGICS) {
+            if (startsWith(head, length, magic, 0)) {
+                return false;
+            }
+        }
+        // webp: "RIFF" + size(4) + "WEBP"
+        return !(startsWith(head, length, new byte[]{'R', 'I', 'F', 'F'}, 0) && startsWith(head, length, new byte[]{'W', 'E', 'B', 'P'}, 8));
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic, int offset) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在背景執行緒讀取並壓縮檔案，回傳壓縮後的資料
+     *
+     * 背景執行緒的錯誤會在讀到結尾或close時拋出
+     * @param sourceFile File
+     * @param metrics JTransferMetrics 以壓縮前的資料量記錄，可為null
+     * @return InputStream
+     */
+    public static InputStream deflate(File sourceFile, JTransferMetrics metrics) throws IOException {
+        PipedInputStream pipeIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+
+        Future<?> future = JCipherPipeline.STAGE_WORKERS.submit(() -> {
+            byte[] buf = new byte[JCipherFileIO.DEFAULT_BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(sourceFile);
+                 OutputStream out = new DeflaterOutputStream(pipeOut, new Deflater(COMPRESSION_LEVEL), JCipherFileIO.DEFAULT_BUFFER_SIZE)) {
+                int readBytes;
+                while ((readBytes = in.read(buf)) != -1) {
+                    out.write(buf, 0, readBytes);
+                    if (metrics != null) metrics.addBytes(readBytes);
+                }
+            }
+            return null;
+        });
+
+        return new FilterInputStream(pipeIn) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) checkStage(future);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int readBytes = super.read(b, off, len);
+                if (readBytes == -1) checkStage(future);
+                return readBytes;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // 先關閉pipe，讓還在寫入的背景執行緒因pipe已關閉而結束；
+                // 不使用cancel(true)，避免interrupt落到共用執行緒上的其他stage
+                super.close();
+                JParallelCipherEngine.awaitQuietly(Arrays.asList(future));
+            }
+        };
+    }
+
+    /**
+     * 寫入的資料在背景執行緒解壓縮後寫到targetFile
+     *
+     * close會等待背景執行緒寫完，並拋出解壓縮時的錯誤
+     * @param targetFile File
+     * @param metrics JTransferMetrics 以解壓縮後的資料量記錄，可為null
+     * @return OutputStream
+     */
+    public static OutputStream inflate(File targetFile, JTransferMetrics metrics) throws IOException {
+        PipedInputStream pipeIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+
+        Future<?> future = JCipherPipeline.STAGE_WORKERS.submit(() -> {
+            byte[] buf = new byte[JCipherFileIO.DEFAULT_BUFFER_SIZE];
+            try (InputStream in = new InflaterInputStream(pipeIn, new Inflater(), JCipherFileIO.DEFAULT_BUFFER_SIZE);
+                 OutputStream out = new FileOutputStream(targetFile)) {
+                int readBytes;
+                while ((readBytes = in.read(buf)) != -1) {
+                    out.write(buf, 0, readBytes);
+                    if (metrics != null) metrics.addBytes(readBytes);
+                }
+            }
+            return null;
+        });
+
+        return new FilterOutputStream(pipeOut) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    // 背景執行緒失敗後pipe會被關閉，改拋出真正的原因
+                    checkStage(future);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    out.close();
+                } finally {
+                    checkStage(future);
+                }
+            }
+        };
+    }
+
+    /**
+     * 等待背景執行緒結束，並將其錯誤轉為IOException
+     */
+    private static void checkStage(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("compression stage interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package crypto.utils;
+
+import enums.JIoModeEnum;
+import model.JCipherTransformation;
+import model.JContainerHeader;
+import model.JInputFile;
+import model.JTransferMetrics;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 同一把key的批次加解密
+ *
+ * key只在建立時解析(或產生)一次，之後每個檔案都使用同一個SecretKey，
+ * 搭配 [JCipherCache] 中每個執行緒的Cipher，JCE重新init時會沿用已展開的key schedule，
+ * 每個檔案只剩下產生iv與init的成本。可由多個執行緒同時使用
+ * @property cipherTransformation JCipherTransformation 加密使用的設定，以及沒有檔頭的舊格式解密時使用
+ * @property secretKey SecretKey
+ * @property iv ByteArray 固定的iv，只用於第一個加密的檔案與沒有檔頭的舊格式解密；為null或已使用過時每個檔案各自產生，
+ *                      記錄在檔頭與keys.bin中。同一把key重複使用iv時，CTR/OFB/CFB兩個密文XOR即為兩個明文的XOR
+ * @property generatedKey Boolean key是否由session產生
+ * @constructor
+ */
+public class JCryptoSession {
+    public final JCipherTransformation cipherTransformation;
+    private final SecretKey secretKey;
+    private final byte[] iv;
+    private final boolean generatedKey;
+    private final SecureRandom random = new SecureRandom();
+    // 檔頭的演算法與session不同時使用，同一份key bytes
+    private final Map<String, SecretKey> keysByAlgorithm = new ConcurrentHashMap<>();
+    // 是否將key與iv記錄到每個加密檔同目錄的 [JKeyManifest]
+    private volatile boolean recordKeys = false;
+    // 這個session以secretKey加密過的iv，避免同一組 (key, iv) 加密兩個檔案
+    private final Set<String> usedIvs = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean fixedIvTaken = new AtomicBoolean(false);
+
+    public JCryptoSession(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv) {
+        this(cipherTransformation, secretKey, iv, false);
+    }
+
+    private JCryptoSession(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, boolean generatedKey) {
+        this.cipherTransformation = cipherTransformation;
+        this.secretKey = secretKey;
+        this.iv = iv;
+        this.generatedKey = generatedKey;
+        keysByAlgorithm.put(secretKey.getAlgorithm(), secretKey);
+    }
+
+    /**
+     * 由畫面/命令列輸入建立session，encodedKey為空時才建立KeyGenerator產生新的key
+     * @param cipherTransformation JCipherTransformation
+     * @param keySize Int 產生key時使用
+     * @param encodedKey String Base64的key，可為空字串
+     * @param ivString String 以「,」分開的byte，空字串表示每個檔案隨機產生
+     * @return JCryptoSession
+     */
+    public static JCryptoSession create(JCipherTransformation cipherTransformation, int keySize, String encodedKey, String ivString) throws NoSuchAlgorithmException {
+        byte[] iv = ivString.isEmpty() ? null : parseIv(ivString);
+        if (!encodedKey.isEmpty()) {
+            byte[] decodedKey = Base64.getDecoder().decode(encodedKey.trim());
+            return new JCryptoSession(cipherTransformation, new SecretKeySpec(decodedKey, 0, decodedKey.length, cipherTransformation.algorithm), iv, false);
+        }
+
+        KeyGenerator keyGen = KeyGenerator.getInstance(cipherTransformation.algorithm);
+        keyGen.init(keySize, new SecureRandom());
+        return new JCryptoSession(cipherTransformation, keyGen.generateKey(), iv, true);
+    }
+
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    public boolean isGeneratedKey() {
+        return generatedKey;
+    }
+
+    /**
+     * 參考網址: [key/string轉換](https://stackoverflow.com/questions/5355466/converting-secret-key-into-a-string-and-vice-versa)
+     * @return String Base64的key
+     */
+    public String getEncodedKey() {
+        return Base64.getEncoder().encodeToString(secretKey.getEncoded());
+    }
+
+    /**
+     * 之後加密的檔案都將key與iv記錄到加密檔同目錄的keys.bin，解密時由 [JKeyManifest.openFor] 找到同一個檔案；
+     * key在加密該目錄的第一個檔案之前寫入
+     * @param recordKeys Boolean
+     * @return Unit
+     */
+    public void setRecordKeys(boolean recordKeys) {
+        this.recordKeys = recordKeys;
+    }
+
+    public boolean isRecordKeys() {
+        return recordKeys;
+    }
+
+    /**
+     * 下一個檔案使用的iv，固定的iv只給第一個檔案，之後隨機產生
+     * @return ByteArray
+     */
+    public byte[] nextIv() {
+        if (iv != null && fixedIvTaken.compareAndSet(false, true)) {
+            return iv;
+        }
+        byte[] nextIv = new byte[cipherTransformation.ivSizeForBytes];
+        random.nextBytes(nextIv);
+        return nextIv;
+    }
+
+    /**
+     * 加密成 [JContainerHeader] 格式
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案
+     * @param metrics JTransferMetrics 可為null
+     * @param compress Boolean 是否先以Deflate壓縮
+     * @return Unit
+     */
+    public void encrypt(File originFile, File encryptedFile, JTransferMetrics metrics, boolean compress) throws IOException, GeneralSecurityException {
+        encrypt(originFile, encryptedFile, metrics, compress, nextIv());
+    }
+
+    /**
+     * 以指定的iv加密成 [JContainerHeader] 格式，iv已經在這個session加密過其他檔案時拒絕
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案
+     * @param metrics JTransferMetrics 可為null
+     * @param compress Boolean 是否先以Deflate壓縮
+     * @param fileIv ByteArray
+     * @return Unit
+     */
+    public void encrypt(File originFile, File encryptedFile, JTransferMetrics metrics, boolean compress, byte[] fileIv) throws IOException, GeneralSecurityException {
+        if (cipherTransformation.isNeedIv() && !usedIvs.add(Base64.getEncoder().encodeToString(fileIv))) {
+            throw new InvalidAlgorithmParameterException("iv was already used with this key in the same session, " + encryptedFile + " is not encrypted");
+        }
+        JKeyManifest manifest = null;
+        long keyId = 0;
+        if (recordKeys) {
+            manifest = JKeyManifest.open(new File(encryptedFile.getAbsoluteFile().getParentFile(), JKeyManifest.DEFAULT_FILE_NAME));
+            keyId = manifest.addKey(secretKey);
+        }
+        JCryptoUtils.encryptToContainer(cipherTransformation, secretKey, fileIv, originFile, encryptedFile, metrics, compress);
+        if (manifest != null) {
+            manifest.addEntry(encryptedFile, keyId, fileIv);
+        }
+    }
+
+    /**
+     * 解密，有檔頭時依檔頭設定，沒有檔頭(舊格式)時使用session的設定與iv
+     *
+     * session的key為自動產生(沒有輸入key)時，改從加密檔同目錄的 [JKeyManifest] 查詢key與iv；
+     * 有檔頭但沒有對應的記錄時 (檔名改過、或最後幾筆記錄尚未寫入磁碟)，檔頭已有iv，
+     * manifest只有一把key時直接使用，有多把key時只有可以驗證的分段GCM會逐一嘗試
+     * @param cipherTextFile File 輸入檔案
+     * @param decryptedFile File 輸出檔案 (明文)
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public void decrypt(File cipherTextFile, File decryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        JContainerHeader header = JCryptoUtils.readContainerHeader(cipherTextFile);
+        SecretKey fileKey = secretKey;
+        byte[] fileIv = iv;
+        if (generatedKey) {
+            JKeyManifest manifest = JKeyManifest.openFor(cipherTextFile);
+            JKeyManifest.Entry entry = manifest == null ? null : manifest.getEntry(cipherTextFile);
+            if (entry == null && manifest != null && header != null) {
+                decryptWithManifestKeys(manifest, header, cipherTextFile, decryptedFile, metrics);
+                return;
+            }
+            fileKey = entry == null ? null : manifest.getKey(entry.keyId);
+            if (fileKey == null) {
+                throw new IOException("no key given and " + cipherTextFile + " is not recorded in " + JKeyManifest.DEFAULT_FILE_NAME);
+            }
+            if (fileIv == null) {
+                fileIv = entry.iv;
+            }
+        }
+
+        if (header != null) {
+            JCryptoUtils.decryptContainer(getKey(fileKey, header.cipherTransformation.algorithm), cipherTextFile, decryptedFile, metrics);
+            return;
+        }
+        if (fileIv == null && cipherTransformation.isNeedIv()) {
+            throw new IOException(cipherTextFile + " has no container header, iv is required");
+        }
+        JCryptoUtils.decrypt(cipherTransformation, getKey(fileKey, cipherTransformation.algorithm), fileIv, cipherTextFile, decryptedFile, JIoModeEnum.CHANNEL, metrics);
+    }
+
+    /**
+     * 畫面使用的路徑規則: 輸出到 <上上層目錄>/output/<檔名>.enc，產生的key與各檔案的iv記錄在同一個目錄的 [JKeyManifest]
+     * @param inputFile JInputFile
+     * @param metrics JTransferMetrics 可為null
+     * @param compress Boolean
+     * @return Unit
+     */
+    public void encrypt(JInputFile inputFile, JTransferMetrics metrics, boolean compress) throws IOException, GeneralSecurityException {
+        File originalFile = new File(inputFile.getCompleteFilename());
+        File outputDirectory = new File(originalFile.getParentFile().getParent(), "output");
+        Files.createDirectories(outputDirectory.toPath());
+        if (generatedKey) {
+            setRecordKeys(true);
+        }
+        // 只量測這次使用的transformation，第一個工作量測後其他工作直接沿用
+        JProviderSelector.calibrate(cipherTransformation.getText());
+        encrypt(originalFile, new File(outputDirectory, originalFile.getName() + ".enc"), metrics, compress);
+    }
+
+    /**
+     * 畫面使用的路徑規則: 輸入為 <上上層目錄>/output/<檔名>.enc 時，輸出到 <上上層目錄>/output/<檔名>
+     * @param inputFile JInputFile 加密檔
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public void decrypt(JInputFile inputFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        File originalFile = new File(inputFile.getCompleteFilename());
+        String name = originalFile.getName();
+        File decryptedFile = new File(new File(originalFile.getParentFile().getParent(), "output"), name.substring(0, name.length() - 4)); // 去除.enc
+        JProviderSelector.calibrate(cipherTransformation.getText());
+        decrypt(originalFile, decryptedFile, metrics);
+    }
+
+    /**
+     * 加密檔沒有記錄時，以manifest中的key解密有檔頭的檔案
+     */
+    private void decryptWithManifestKeys(JKeyManifest manifest, JContainerHeader header, File cipherTextFile, File decryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        List<SecretKey> keys = manifest.getKeys();
+        String algorithm = header.cipherTransformation.algorithm;
+        if (keys.size() == 1) {
+            JCryptoUtils.decryptContainer(getKey(keys.get(0), algorithm), cipherTextFile, decryptedFile, metrics);
+            return;
+        }
+        if (keys.isEmpty() || !header.hasFlag(JContainerHeader.FLAG_SEGMENTED_AEAD)) {
+            throw new IOException("no key given, " + cipherTextFile + " is not recorded in " + JKeyManifest.DEFAULT_FILE_NAME
+                    + " and the " + keys.size() + " recorded keys cannot be verified against it");
+        }
+        // GCM的tag可以驗證key是否正確，錯誤的key在第一個segment就會失敗
+        for (SecretKey key : keys) {
+            try {
+                JCryptoUtils.decryptContainer(getKey(key, algorithm), cipherTextFile, decryptedFile, metrics);
+                return;
+            } catch (AEADBadTagException e) {
+                // 下一把key
+            }
+        }
+        Files.deleteIfExists(decryptedFile.toPath());
+        throw new IOException("no key in " + JKeyManifest.DEFAULT_FILE_NAME + " decrypts " + cipherTextFile);
+    }
+
+    private SecretKey getKey(SecretKey key, String algorithm) {
+        if (key != secretKey) {
+            return key.getAlgorithm().equals(algorithm) ? key : new SecretKeySpec(key.getEncoded(), algorithm);
+        }
+        return keysByAlgorithm.computeIfAbsent(algorithm, a -> new SecretKeySpec(secretKey.getEncoded(), a));
+    }
+
+    private static byte[] parseIv(String ivString) {
+        String[] ss = ivString.split(",");
+        byte[] iv = new byte[ss.length];
+        for (int i = 0; i < ss.length; i++) {
+            iv[i] = Byte.parseByte(ss[i].trim());
+        }
+        return iv;
+    }
+}
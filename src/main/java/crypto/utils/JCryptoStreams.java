@@ -0,0 +1,326 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * 給其他服務嵌入使用的串流API，不經過檔案也不轉成String
+ *
+ * 包裝InputStream / OutputStream、ReadableByteChannel / WritableByteChannel，
+ * 以及由呼叫者提供輸入與輸出的ByteBuffer。串流類的API每個instance只使用固定大小的buffer，
+ * 記憶體用量與資料長度無關。GCM解密需要在驗證前保留整段資料，因此不提供串流，請使用 [JGcmSegmentEngine]
+ */
+public class JCryptoStreams {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 讀取時回傳in的密文
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray 不需要iv的模式(ECB)會忽略
+     * @param in InputStream 關閉回傳的串流時一併關閉
+     * @return InputStream
+     */
+    public static InputStream encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, InputStream in) throws GeneralSecurityException {
+        return Channels.newInputStream(encrypt(cipherTransformation, secretKey, iv, Channels.newChannel(in)));
+    }
+
+    /**
+     * 讀取時回傳in的明文，padding錯誤在讀到結尾時以IOException拋出
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param in InputStream 關閉回傳的串流時一併關閉
+     * @return InputStream
+     */
+    public static InputStream decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, InputStream in) throws GeneralSecurityException {
+        return Channels.newInputStream(decrypt(cipherTransformation, secretKey, iv, Channels.newChannel(in)));
+    }
+
+    /**
+     * 寫入的明文加密後寫到out，close時輸出最後一個block
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param out OutputStream 關閉回傳的串流時一併關閉
+     * @return OutputStream
+     */
+    public static OutputStream encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, OutputStream out) throws GeneralSecurityException {
+        return Channels.newOutputStream(encrypt(cipherTransformation, secretKey, iv, Channels.newChannel(out)));
+    }
+
+    /**
+     * 寫入的密文解密後寫到out，close時輸出最後一個block
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param out OutputStream 關閉回傳的串流時一併關閉
+     * @return OutputStream
+     */
+    public static OutputStream decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, OutputStream out) throws GeneralSecurityException {
+        return Channels.newOutputStream(decrypt(cipherTransformation, secretKey, iv, Channels.newChannel(out)));
+    }
+
+    /**
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param source ReadableByteChannel 明文
+     * @return ReadableByteChannel 密文
+     */
+    public static ReadableByteChannel encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, ReadableByteChannel source) throws GeneralSecurityException {
+        return new CipherReadableChannel(newCipher(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv), source);
+    }
+
+    /**
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param source ReadableByteChannel 密文
+     * @return ReadableByteChannel 明文
+     */
+    public static ReadableByteChannel decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, ReadableByteChannel source) throws GeneralSecurityException {
+        return new CipherReadableChannel(newCipher(cipherTransformation, Cipher.DECRYPT_MODE, secretKey, iv), source);
+    }
+
+    /**
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param target WritableByteChannel 寫入密文
+     * @return WritableByteChannel 寫入明文，close時輸出最後一個block
+     */
+    public static WritableByteChannel encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, WritableByteChannel target) throws GeneralSecurityException {
+        return new CipherWritableChannel(newCipher(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv), target);
+    }
+
+    /**
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param target WritableByteChannel 寫入明文
+     * @return WritableByteChannel 寫入密文，close時輸出最後一個block
+     */
+    public static WritableByteChannel decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, WritableByteChannel target) throws GeneralSecurityException {
+        return new CipherWritableChannel(newCipher(cipherTransformation, Cipher.DECRYPT_MODE, secretKey, iv), target);
+    }
+
+    /**
+     * 加密input剩下的資料到output，兩者皆由呼叫者配置，不會另外配置buffer
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param input ByteBuffer 完成後position等於limit
+     * @param output ByteBuffer 剩餘空間至少需要 [getMaxOutputSize]
+     * @return Int 寫入output的bytes數
+     * @throws javax.crypto.ShortBufferException output空間不足
+     */
+    public static int encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        rejectGcm(cipherTransformation);
+        return JCipherCache.getInitialized(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv).doFinal(input, output);
+    }
+
+    /**
+     * 解密input剩下的資料到output，兩者皆由呼叫者配置，不會另外配置buffer
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param input ByteBuffer 完成後position等於limit
+     * @param output ByteBuffer 剩餘空間至少需要input.remaining()
+     * @return Int 寫入output的bytes數
+     */
+    public static int decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        rejectGcm(cipherTransformation);
+        return JCipherCache.getInitialized(cipherTransformation, Cipher.DECRYPT_MODE, secretKey, iv).doFinal(input, output);
+    }
+
+    /**
+     * 加密inputLength bytes最多輸出的大小，解密的輸出不會超過輸入
+     * @param cipherTransformation JCipherTransformation
+     * @param inputLength Int
+     * @return Int
+     */
+    public static int getMaxOutputSize(JCipherTransformation cipherTransformation, int inputLength) {
+        return "NoPadding".equalsIgnoreCase(cipherTransformation.padding) ? inputLength : inputLength + cipherTransformation.ivSizeForBytes;
+    }
+
+    /**
+     * 串流會長時間持有Cipher，因此不使用 [JCipherCache] 裡屬於執行緒的instance
+     */
+    private static Cipher newCipher(JCipherTransformation cipherTransformation, int mode, SecretKey secretKey, byte[] iv) throws GeneralSecurityException {
+        rejectGcm(cipherTransformation);
+        Cipher cipher = JProviderSelector.newCipher(cipherTransformation.getText());
+        if (cipherTransformation.isNeedIv()) {
+            cipher.init(mode, secretKey, new IvParameterSpec(iv));
+        } else {
+            cipher.init(mode, secretKey);
+        }
+        return cipher;
+    }
+
+    private static void rejectGcm(JCipherTransformation cipherTransformation) {
+        if (JGcmSegmentEngine.isSupported(cipherTransformation)) {
+            throw new IllegalArgumentException("GCM cannot be streamed in constant memory, use JGcmSegmentEngine");
+        }
+    }
+
+    /**
+     * 從source讀取後經過cipher的ReadableByteChannel
+     */
+    private static class CipherReadableChannel implements ReadableByteChannel {
+        private final Cipher cipher;
+        private final ReadableByteChannel source;
+        private final ByteBuffer inBuf = ByteBuffer.allocate(BUFFER_SIZE);
+        // 已經過cipher但尚未被讀走的資料，position到limit之間
+        private final ByteBuffer outBuf;
+        private boolean finished = false;
+        private boolean open = true;
+
+        CipherReadableChannel(Cipher cipher, ReadableByteChannel source) {
+            this.cipher = cipher;
+            this.source = source;
+            this.outBuf = ByteBuffer.allocate(cipher.getOutputSize(BUFFER_SIZE) + cipher.getBlockSize());
+            outBuf.flip();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            while (!outBuf.hasRemaining()) {
+                if (finished) {
+                    return -1;
+                }
+                if (fill() == 0) {
+                    // non-blocking的source目前沒有資料
+                    return 0;
+                }
+            }
+
+            int count = Math.min(dst.remaining(), outBuf.remaining());
+            ByteBuffer part = outBuf.duplicate();
+            part.limit(part.position() + count);
+            dst.put(part);
+            outBuf.position(outBuf.position() + count);
+            return count;
+        }
+
+        /**
+         * 讀取一次source並送進cipher，source結束時doFinal
+         * @return Int source.read的回傳值
+         */
+        private int fill() throws IOException {
+            inBuf.clear();
+            int readBytes = source.read(inBuf);
+            inBuf.flip();
+            outBuf.clear();
+            try {
+                if (readBytes < 0) {
+                    cipher.doFinal(inBuf, outBuf);
+                    finished = true;
+                } else {
+                    cipher.update(inBuf, outBuf);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            } finally {
+                outBuf.flip();
+            }
+            return readBytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            source.close();
+        }
+    }
+
+    /**
+     * 經過cipher後寫到target的WritableByteChannel
+     */
+    private static class CipherWritableChannel implements WritableByteChannel {
+        private final Cipher cipher;
+        private final WritableByteChannel target;
+        private final ByteBuffer outBuf;
+        private boolean open = true;
+
+        CipherWritableChannel(Cipher cipher, WritableByteChannel target) {
+            this.cipher = cipher;
+            this.target = target;
+            this.outBuf = ByteBuffer.allocate(cipher.getOutputSize(BUFFER_SIZE) + cipher.getBlockSize());
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int count = src.remaining();
+            try {
+                while (src.hasRemaining()) {
+                    // 每次最多送BUFFER_SIZE進cipher，讓輸出一定放得進outBuf
+                    ByteBuffer part = src.duplicate();
+                    part.limit(part.position() + Math.min(BUFFER_SIZE, part.remaining()));
+                    outBuf.clear();
+                    cipher.update(part, outBuf);
+                    src.position(part.position());
+                    flush();
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            return count;
+        }
+
+        private void flush() throws IOException {
+            outBuf.flip();
+            while (outBuf.hasRemaining()) {
+                target.write(outBuf);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * 輸出最後一個block後關閉target，padding錯誤時仍會關閉target
+         */
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+            try {
+                outBuf.clear();
+                cipher.doFinal(ByteBuffer.allocate(0), outBuf);
+                flush();
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            } finally {
+                target.close();
+            }
+        }
+    }
+}
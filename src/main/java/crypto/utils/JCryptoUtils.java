@@ -1,31 +1,46 @@
 package crypto.utils;
 
+import enums.JIoModeEnum;
 import model.JCipherTransformation;
+import model.JContainerHeader;
 import model.JInputFile;
+import model.JTransferMetrics;
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.Date;
+import java.util.concurrent.CancellationException;
 
 /**
  * 加密工具
  */
 public class JCryptoUtils {
     private static final int BLOCK_SIZE = 16;
+    // 超過此大小的CTR檔案改用多核心平行處理
+    private static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    // 無法平行處理的模式，超過此大小時讓讀寫與加解密在不同執行緒同時進行
+    private static final long PIPELINE_THRESHOLD = 4 * 1024 * 1024;
 
     /**
-     * 完整加密過程，解密出來的檔案為encryptedFile（附檔名為env）
+     * 完整加密過程，解密出來的檔案為encryptedFile（附檔名為env），檔案開頭寫入 [JContainerHeader]
      * @param cipherTransformation CipherTransformation
      * @param keySize Int
      * @param inputFile JInputFile 要加密的檔案
@@ -33,48 +48,38 @@ public class JCryptoUtils {
      * @param ivString String
      * @return Unit
      */
-    public static void encrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString) throws NoSuchAlgorithmException, IOException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchPaddingException {
-        KeyGenerator keyGen = KeyGenerator.getInstance(cipherTransformation.algorithm);
-        keyGen.init(keySize, new SecureRandom());
-        SecretKey secretKey = (encodedKey.isEmpty()) ? keyGen.generateKey() : convertStringToSecretKey(cipherTransformation.algorithm, encodedKey);
-        byte[] iv;
-
-        if (ivString.isEmpty()) {
-            iv = new byte[cipherTransformation.ivSizeForBytes];
-            SecureRandom prng = new SecureRandom();
-            prng.nextBytes(iv);
-        } else {
-            String[] ss = ivString.split(",");
-            iv = new byte[ss.length];
-            for(int i = 0;i < ss.length;i++){
-                iv[i] = Byte.parseByte(ss[i]);
-            }
-        }
-
-        File originalFile = new File(inputFile.getCompleteFilename());
-        File encryptedFile = new File(String.format("%s/output/%s.enc", originalFile.getParentFile().getParent(), originalFile.getName()));
-
-        // 將iv輸出
-        if (ivString.isEmpty()) {
-            File file = new File(String.format("%s/output/iv-%s.txt", originalFile.getParentFile().getParent(), new Date().getTime()));
-            String[] ss = new String[iv.length];
-            for(int i = 0;i < ss.length;i++){
-                ss[i] = String.valueOf(iv[i]);
-            }
-            String outputIvString = String.join(",", ss);
-            FileOutputStream outStream = new FileOutputStream(file);
-            outStream.write(outputIvString.getBytes());
-        }
+    public static void encrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString) throws IOException, GeneralSecurityException {
+        encrypt(cipherTransformation, keySize, inputFile, encodedKey, ivString, inputFile.getMetrics());
+    }
 
-        // 將key輸出
-        if (encodedKey.isEmpty()) {
-            File file = new File(String.format("%s/output/key-%s.txt", originalFile.getParentFile().getParent(), new Date().getTime()));
-            String outputKey = convertSecretKeyToString(secretKey);
-            FileOutputStream outStream = new FileOutputStream(file);
-            outStream.write(outputKey.getBytes());
-        }
+    /**
+     * 完整加密過程，並將進度記錄到metrics
+     * @param cipherTransformation CipherTransformation
+     * @param keySize Int
+     * @param inputFile JInputFile 要加密的檔案
+     * @param encodedKey String
+     * @param ivString String
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void encrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        encrypt(cipherTransformation, keySize, inputFile, encodedKey, ivString, metrics, false);
+    }
 
-        encrypt(cipherTransformation, secretKey, iv, originalFile, encryptedFile);
+    /**
+     * 完整加密過程，可選擇加密前先壓縮
+     * @param cipherTransformation CipherTransformation
+     * @param keySize Int
+     * @param inputFile JInputFile 要加密的檔案
+     * @param encodedKey String
+     * @param ivString String
+     * @param metrics JTransferMetrics 可為null
+     * @param compress Boolean 是否以Deflate壓縮，已壓縮的格式會自動略過
+     * @return Unit
+     */
+    public static void encrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString, JTransferMetrics metrics, boolean compress) throws IOException, GeneralSecurityException {
+        // 單一檔案的session，批次處理請直接使用同一個 [JCryptoSession]
+        JCryptoSession.create(cipherTransformation, keySize, encodedKey, ivString).encrypt(inputFile, metrics, compress);
     }
 
     /**
@@ -87,28 +92,52 @@ public class JCryptoUtils {
      * @return Unit
      * @throws Exception
      */
-    public static void encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IOException, BadPaddingException, IllegalBlockSizeException {
-        Cipher cipher = Cipher.getInstance(cipherTransformation.getText());
+    public static void encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile) throws IOException, GeneralSecurityException {
+        encrypt(cipherTransformation, secretKey, iv, originFile, encryptedFile, JIoModeEnum.CHANNEL);
+    }
 
-        if (cipherTransformation.isNeedIv()) {
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
-        } else {
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        }
+    /**
+     * 加密，指定I/O方式
+     * @param cipherTransformation CipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案 (密文)
+     * @param ioMode JIoModeEnum
+     * @return Unit
+     */
+    public static void encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile, JIoModeEnum ioMode) throws IOException, GeneralSecurityException {
+        encrypt(cipherTransformation, secretKey, iv, originFile, encryptedFile, ioMode, null);
+    }
 
-        byte[] buf = new byte[21];
+    /**
+     * 加密，指定I/O方式並將進度記錄到metrics
+     * @param cipherTransformation CipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param originFile File
+     * @param encryptedFile File
+     * @param ioMode JIoModeEnum
+     * @param metrics JTransferMetrics 可為null，設定的 [model.JCancellationToken] 被取消時刪除未完成的輸出檔並拋出CancellationException
+     * @return Unit
+     */
+    public static void encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile, JIoModeEnum ioMode, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        startMetrics(metrics, originFile.length());
+        try {
+            if (JParallelCipherEngine.isSupported(cipherTransformation) && originFile.length() >= PARALLEL_THRESHOLD) {
+                new JParallelCipherEngine().encrypt(cipherTransformation, secretKey, iv, originFile, encryptedFile, metrics);
+                return;
+            }
 
-        FileInputStream inStream = new FileInputStream(originFile);
-        FileOutputStream outStream = new FileOutputStream(encryptedFile);
+            Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv);
 
-        int readBytes = inStream.read(buf);
-        while(readBytes > 0) {
-            byte[] cipherBytes = cipher.update(buf, 0 , readBytes);
-            outStream.write(cipherBytes);
-            readBytes = inStream.read(buf);
+            JCipherFileIO.transform(cipher, originFile, encryptedFile, ioMode, JCipherFileIO.DEFAULT_BUFFER_SIZE, metrics);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            deleteIfCancelled(metrics, encryptedFile, e);
+            throw e;
+        } finally {
+            finishMetrics(metrics);
         }
-        outStream.write(cipher.doFinal());
-
     }
 
     /**
@@ -120,37 +149,22 @@ public class JCryptoUtils {
      * @param ivString String
      * @return Unit
      */
-    public static void decrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IOException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
-        KeyGenerator keyGen = KeyGenerator.getInstance(cipherTransformation.algorithm);
-        keyGen.init(keySize, new SecureRandom());
-        SecretKey secretKey = (encodedKey.isEmpty()) ? keyGen.generateKey() : convertStringToSecretKey(cipherTransformation.algorithm, encodedKey);
-        byte[] iv = new byte[cipherTransformation.ivSizeForBytes];
-
-        if (ivString.isEmpty()) {
-            SecureRandom prng = new SecureRandom();
-            prng.nextBytes(iv);
-        } else {
-            String[] ss = ivString.split(",");
-            iv = new byte[ss.length];
-            for(int i = 0;i < ss.length;i++)
-                iv[i] = Byte.parseByte(ss[i]);
-        }
-
-        File originalFile = new File(inputFile.getCompleteFilename());
-
-        String outputFilename = String.format("%s/output/%s", originalFile.getParentFile().getParent(), originalFile.getName());
-        String encryptedCompleteFilename = outputFilename.subSequence(0, outputFilename.length() - 4).toString(); // 去除.enc
-        File encryptedFile = new File(encryptedCompleteFilename);
-        //debug用
-        System.out.printf(
-                "%s / %d / %d / %s",
-                cipherTransformation.getText(),
-                keySize,
-                cipherTransformation.ivSizeForBytes,
-                Arrays.toString(iv)
-        );
+    public static void decrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString) throws IOException, GeneralSecurityException {
+        decrypt(cipherTransformation, keySize, inputFile, encodedKey, ivString, inputFile.getMetrics());
+    }
 
-        decrypt(cipherTransformation, secretKey, iv, originalFile, encryptedFile);
+    /**
+     * 前置解密過程，並將進度記錄到metrics
+     * @param cipherTransformation JCipherTransformation
+     * @param keySize Int
+     * @param inputFile JInputFile 要解密的檔案
+     * @param encodedKey String
+     * @param ivString String
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void decrypt(JCipherTransformation cipherTransformation, int keySize, JInputFile inputFile, String encodedKey, String ivString, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        JCryptoSession.create(cipherTransformation, keySize, encodedKey, ivString).decrypt(inputFile, metrics);
     }
 
     /**
@@ -163,59 +177,297 @@ public class JCryptoUtils {
      * @return Unit
      * @throws Exception
      */
-    public static void decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, File decryptedFile) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IOException, BadPaddingException, IllegalBlockSizeException {
-        Cipher cipher = Cipher.getInstance(cipherTransformation.getText());
+    public static void decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, File decryptedFile) throws IOException, GeneralSecurityException {
+        decrypt(cipherTransformation, secretKey, iv, cipherTextFile, decryptedFile, JIoModeEnum.CHANNEL);
+    }
 
-        if (cipherTransformation.isNeedIv()) {
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
-        } else {
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+    /**
+     * 解密，指定I/O方式
+     * @param cipherTransformation CipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param cipherTextFile File
+     * @param decryptedFile File
+     * @param ioMode JIoModeEnum
+     * @return Unit
+     */
+    public static void decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, File decryptedFile, JIoModeEnum ioMode) throws IOException, GeneralSecurityException {
+        decrypt(cipherTransformation, secretKey, iv, cipherTextFile, decryptedFile, ioMode, null);
+    }
+
+    /**
+     * 解密，指定I/O方式並將進度記錄到metrics
+     * @param cipherTransformation CipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param cipherTextFile File
+     * @param decryptedFile File
+     * @param ioMode JIoModeEnum
+     * @param metrics JTransferMetrics 可為null，設定的 [model.JCancellationToken] 被取消時刪除未完成的輸出檔並拋出CancellationException
+     * @return Unit
+     */
+    public static void decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, File decryptedFile, JIoModeEnum ioMode, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        startMetrics(metrics, cipherTextFile.length());
+        try {
+            if (JParallelCipherEngine.isSupported(cipherTransformation, Cipher.DECRYPT_MODE) && cipherTextFile.length() >= PARALLEL_THRESHOLD) {
+                new JParallelCipherEngine().decrypt(cipherTransformation, secretKey, iv, cipherTextFile, decryptedFile, metrics);
+                return;
+            }
+
+            Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.DECRYPT_MODE, secretKey, iv);
+
+            JCipherFileIO.transform(cipher, cipherTextFile, decryptedFile, ioMode, JCipherFileIO.DEFAULT_BUFFER_SIZE, metrics);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            deleteIfCancelled(metrics, decryptedFile, e);
+            throw e;
+        } finally {
+            finishMetrics(metrics);
+        }
+    }
+
+    /**
+     * 加密並在輸出檔開頭寫入 [JContainerHeader]
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案 (檔頭 + 密文)
+     * @return Unit
+     */
+    public static void encryptToContainer(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile) throws IOException, GeneralSecurityException {
+        encryptToContainer(cipherTransformation, secretKey, iv, originFile, encryptedFile, null);
+    }
+
+    /**
+     * 加密並在輸出檔開頭寫入 [JContainerHeader]，並將進度記錄到metrics
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案 (檔頭 + 密文)
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public static void encryptToContainer(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        encryptToContainer(cipherTransformation, secretKey, iv, originFile, encryptedFile, metrics, false);
+    }
+
+    /**
+     * 加密並在輸出檔開頭寫入 [JContainerHeader]，可選擇先以Deflate壓縮
+     *
+     * 已壓縮的格式(見 [JCompressionStage.isCompressible])與分段GCM不壓縮，照一般流程加密
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案 (檔頭 + 密文)
+     * @param metrics JTransferMetrics 可為null，設定的 [model.JCancellationToken] 被取消時刪除未完成的輸出檔並拋出CancellationException
+     * @param compress Boolean 是否壓縮
+     * @return Unit
+     */
+    public static void encryptToContainer(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile, JTransferMetrics metrics, boolean compress) throws IOException, GeneralSecurityException {
+        startMetrics(metrics, originFile.length());
+        try {
+            if (JGcmSegmentEngine.isSupported(cipherTransformation)) {
+                new JGcmSegmentEngine().encrypt(cipherTransformation.algorithm, secretKey, originFile, encryptedFile, metrics);
+                return;
+            }
+            if (compress && JCompressionStage.isCompressible(originFile)) {
+                encryptDeflated(cipherTransformation, secretKey, iv, originFile, encryptedFile, metrics);
+                return;
+            }
+
+            try (FileChannel inChannel = FileChannel.open(originFile.toPath(), StandardOpenOption.READ);
+                 FileChannel outChannel = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long length = inChannel.size();
+                JContainerHeader header = JContainerHeader.forPlaintext(cipherTransformation, iv, JParallelCipherEngine.DEFAULT_CHUNK_SIZE, length);
+                ByteBuffer headerBytes = ByteBuffer.wrap(header.toBytes());
+                while (headerBytes.hasRemaining()) {
+                    outChannel.write(headerBytes);
+                }
+
+                if (JParallelCipherEngine.isSupported(cipherTransformation) && length >= PARALLEL_THRESHOLD) {
+                    new JParallelCipherEngine(Runtime.getRuntime().availableProcessors(), header.chunkSize)
+                            .process(Cipher.ENCRYPT_MODE, cipherTransformation, secretKey, iv, inChannel, 0, length, outChannel, headerBytes.capacity(), metrics);
+                } else {
+                    Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv);
+                    transformSequential(cipher, inChannel, 0, length, outChannel, metrics);
+                }
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            deleteIfCancelled(metrics, encryptedFile, e);
+            throw e;
+        } finally {
+            finishMetrics(metrics);
+        }
+    }
+
+    /**
+     * 壓縮在背景執行緒進行，目前的執行緒只負責加密與寫檔
+     */
+    private static void encryptDeflated(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        JContainerHeader header = JContainerHeader.forDeflated(cipherTransformation, iv, JCipherFileIO.DEFAULT_BUFFER_SIZE, originFile.length());
+        Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv);
+
+        try (InputStream deflated = JCompressionStage.deflate(originFile, metrics);
+             OutputStream outStream = new BufferedOutputStream(new FileOutputStream(encryptedFile), JCipherFileIO.DEFAULT_BUFFER_SIZE)) {
+            outStream.write(header.toBytes());
+            // 進度以壓縮前的大小計算，由壓縮執行緒記錄
+            JCipherFileIO.transformStream(cipher, deflated, outStream, header.chunkSize, null);
+        }
+    }
+
+    /**
+     * 解密後的資料交給背景執行緒解壓縮
+     */
+    private static void decryptDeflated(SecretKey secretKey, JContainerHeader header, File cipherTextFile, File decryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        Cipher cipher = JCipherCache.getInitialized(header.cipherTransformation, Cipher.DECRYPT_MODE, secretKey, header.iv);
+
+        try (FileChannel inChannel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ)) {
+            inChannel.position(header.getDataOffset());
+            InputStream inStream = Channels.newInputStream(inChannel);
+            try (OutputStream inflated = JCompressionStage.inflate(decryptedFile, metrics)) {
+                JCipherFileIO.transformStream(cipher, inStream, inflated, header.chunkSize, null);
+            }
         }
+    }
 
-        if(!decryptedFile.exists()){
-            decryptedFile.createNewFile();
+    /**
+     * 解密有檔頭的加密檔，演算法、模式、填充方式、iv與chunk大小皆由檔頭取得，分段GCM會先驗證每個segment
+     * @param secretKey SecretKey
+     * @param cipherTextFile File 輸入檔案 (檔頭 + 密文)
+     * @param decryptedFile File 輸出檔案 (明文)
+     * @return Unit
+     */
+    public static void decryptContainer(SecretKey secretKey, File cipherTextFile, File decryptedFile) throws IOException, GeneralSecurityException {
+        decryptContainer(secretKey, cipherTextFile, decryptedFile, null);
+    }
+
+    /**
+     * 解密有檔頭的加密檔，並將進度記錄到metrics
+     * @param secretKey SecretKey
+     * @param cipherTextFile File 輸入檔案 (檔頭 + 密文)
+     * @param decryptedFile File 輸出檔案 (明文)
+     * @param metrics JTransferMetrics 可為null，設定的 [model.JCancellationToken] 被取消時刪除未完成的輸出檔並拋出CancellationException
+     * @return Unit
+     */
+    public static void decryptContainer(SecretKey secretKey, File cipherTextFile, File decryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        JContainerHeader header = readContainerHeader(cipherTextFile);
+        if (header == null) {
+            throw new IOException(cipherTextFile + " is not an encrypted container");
         }
 
-        byte[] buf = new byte[32];
+        startMetrics(metrics, header.plaintextLength);
+        try {
+            if (header.hasFlag(JContainerHeader.FLAG_SEGMENTED_AEAD)) {
+                new JGcmSegmentEngine(Runtime.getRuntime().availableProcessors(), header.chunkSize).decrypt(secretKey, header, cipherTextFile, decryptedFile, metrics);
+                return;
+            }
+            if (header.hasFlag(JContainerHeader.FLAG_DEFLATE)) {
+                decryptDeflated(secretKey, header, cipherTextFile, decryptedFile, metrics);
+                return;
+            }
+
+            try (FileChannel inChannel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ);
+                 FileChannel outChannel = FileChannel.open(decryptedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                JCipherTransformation cipherTransformation = header.cipherTransformation;
+                long dataOffset = header.getDataOffset();
+                long length = inChannel.size() - dataOffset;
+
+                if (JParallelCipherEngine.isSupported(cipherTransformation, Cipher.DECRYPT_MODE) && length >= PARALLEL_THRESHOLD) {
+                    new JParallelCipherEngine(Runtime.getRuntime().availableProcessors(), header.chunkSize)
+                            .process(Cipher.DECRYPT_MODE, cipherTransformation, secretKey, header.iv, inChannel, dataOffset, length, outChannel, 0, metrics);
+                } else {
+                    Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.DECRYPT_MODE, secretKey, header.iv);
+                    transformSequential(cipher, inChannel, dataOffset, length, outChannel, metrics);
+                }
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            deleteIfCancelled(metrics, decryptedFile, e);
+            throw e;
+        } finally {
+            finishMetrics(metrics);
+        }
+    }
+
+    /**
+     * 單執行緒的加解密，較大的檔案使用 [JCipherPipeline]
+     */
+    private static void transformSequential(Cipher cipher, FileChannel inChannel, long inOffset, long length, FileChannel outChannel, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        if (length >= PIPELINE_THRESHOLD) {
+            new JCipherPipeline(cipher, JCipherFileIO.DEFAULT_BUFFER_SIZE).run(inChannel, inOffset, outChannel, metrics);
+        } else {
+            JCipherFileIO.transformChannel(cipher, inChannel, inOffset, outChannel, JCipherFileIO.DEFAULT_BUFFER_SIZE, metrics);
+        }
+    }
+
+    private static void startMetrics(JTransferMetrics metrics, long totalBytes) {
+        if (metrics != null) metrics.start(totalBytes);
+    }
 
-        FileInputStream inStream = new FileInputStream(cipherTextFile);
-        FileOutputStream outStream = new FileOutputStream(decryptedFile);
+    private static void finishMetrics(JTransferMetrics metrics) {
+        if (metrics != null) metrics.finish();
+    }
 
-        int readBytes = inStream.read(buf);
+    /**
+     * 工作已被取消時刪除未完成的輸出檔，並改拋出CancellationException；未取消時不處理，由呼叫者拋出原本的錯誤
+     */
+    private static void deleteIfCancelled(JTransferMetrics metrics, File outputFile, Exception e) {
+        if (metrics == null || !metrics.isCancelled()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(outputFile.toPath());
+        } catch (IOException deleteFailure) {
+            e.addSuppressed(deleteFailure);
+        }
+        CancellationException cancelled = new CancellationException(outputFile + " was cancelled, partial output deleted");
+        cancelled.initCause(e);
+        throw cancelled;
+    }
 
-        while(readBytes > 0){
-            byte[] decryptedBytes = cipher.update(buf, 0 , readBytes);
-            outStream.write(decryptedBytes);
-            readBytes = inStream.read(buf);
+    /**
+     * 讀取加密檔的檔頭
+     * @param cipherTextFile File
+     * @return JContainerHeader 沒有檔頭(舊格式的純密文)時回傳null
+     */
+    public static JContainerHeader readContainerHeader(File cipherTextFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ)) {
+            return JContainerHeader.isContainer(channel) ? JContainerHeader.read(channel) : null;
         }
-        outStream.write(cipher.doFinal());
     }
 
     /**
-     * 參考網址: [key/string轉換](https://stackoverflow.com/questions/5355466/converting-secret-key-into-a-string-and-vice-versa)
+     * 開啟CTR密文檔的可隨機存取Channel，read回傳明文，有 [JContainerHeader] 時依檔頭設定
+     * @param cipherTransformation JCipherTransformation 必須是CTR，有檔頭時不使用
      * @param secretKey SecretKey
-     * @return String
+     * @param iv ByteArray
+     * @param cipherTextFile File
+     * @return SeekableByteChannel
      */
-    private static String convertSecretKeyToString(SecretKey secretKey) {
-        // get base64 encoded version of the key
-        return Base64.getEncoder().encodeToString(secretKey.getEncoded()); // encodedKey
+    public static SeekableByteChannel openDecryptingChannel(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException {
+        return new JCtrDecryptingChannel(cipherTransformation, secretKey, iv, cipherTextFile);
     }
 
     /**
-     *
-     * @param algorithm String
-     * @param encodedKey String
-     * @return SecretKey
+     * 解密密文檔中 [offset, offset + length) 的明文並寫到sink，只讀取範圍與其前一個block，見 [JRangeDecryptor]
+     * @param cipherTransformation JCipherTransformation CTR, ECB, CBC, CFB, OFB (見 [JRangeDecryptor.isSupported])
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param cipherTextFile File 有 [JContainerHeader] 時以檔頭的設定與iv為準
+     * @param offset Long 明文位置
+     * @param length Long
+     * @param sink WritableByteChannel 不會被關閉
+     * @return Unit
      */
-    private static SecretKey convertStringToSecretKey(String algorithm, String encodedKey) {
-        // decode the base64 encoded string
-        byte[] decodedKey = Base64.getDecoder().decode(encodedKey);
-        // rebuild key using SecretKeySpec
-        return new SecretKeySpec(decodedKey, 0, decodedKey.length, algorithm); // originalKey
+    public static void decryptRange(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, long offset, long length, WritableByteChannel sink) throws IOException, GeneralSecurityException {
+        try (JRangeDecryptor rangeDecryptor = JRangeDecryptor.open(cipherTransformation, secretKey, iv, cipherTextFile)) {
+            rangeDecryptor.decrypt(offset, length, sink);
+        }
     }
 
     /**
-     * 部分加密
+     * 部分解密 (AES/CTR)，超過檔尾的block不回傳，較大的範圍請使用 [decryptRange]
      * @param secretKey SecretKey
      * @param iv ByteArray
      * @param cipherTextFile File
@@ -225,24 +477,31 @@ public class JCryptoUtils {
      * @throws Exception
      */
     //@Deprecated("測試用")
-    public static byte[] decryptPartial(SecretKey secretKey, byte[] iv, File cipherTextFile, int blockIndex, int blockCount) throws NoSuchPaddingException, NoSuchAlgorithmException, IOException, InvalidAlgorithmParameterException, InvalidKeyException {
-        int offset = blockIndex * BLOCK_SIZE;
-        int bufSize = blockCount * BLOCK_SIZE;
-
-        Cipher cipher = Cipher.getInstance("AES/CTR/PKCS5PADDING");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, calculateIVForBlock(new IvParameterSpec(iv), Long.valueOf(blockIndex)));
-
-        byte[] decryptedBytes = new byte[bufSize];
-
-        FileInputStream inStream = new FileInputStream(cipherTextFile);
-
-        byte[] inputBuf = new byte[bufSize];
-        inStream.skip(Long.valueOf(offset));
-
-        int readBytes = inStream.read(inputBuf);
-        decryptedBytes = cipher.update(inputBuf, 0, readBytes);
+    public static byte[] decryptPartial(SecretKey secretKey, byte[] iv, File cipherTextFile, int blockIndex, int blockCount) throws IOException, GeneralSecurityException {
+        JCipherTransformation cipherTransformation = new JCipherTransformation("AES", "CTR", "NoPadding", BLOCK_SIZE);
+        return decryptPartial(cipherTransformation, secretKey, iv, cipherTextFile, (long) blockIndex * BLOCK_SIZE, (long) blockCount * BLOCK_SIZE);
+    }
 
-        return decryptedBytes;
+    /**
+     * 部分解密，超過明文結尾的部分不回傳，較大的範圍請使用 [decryptRange]
+     * @param cipherTransformation JCipherTransformation 見 [JRangeDecryptor.isSupported]
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param cipherTextFile File 有 [JContainerHeader] 時以檔頭的設定與iv為準
+     * @param offset Long 明文位置
+     * @param length Long
+     * @return ByteArray
+     */
+    public static byte[] decryptPartial(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, long offset, long length) throws IOException, GeneralSecurityException {
+        try (JRangeDecryptor rangeDecryptor = JRangeDecryptor.open(cipherTransformation, secretKey, iv, cipherTextFile)) {
+            long available = Math.max(0, Math.min(length, rangeDecryptor.getPlaintextLength() - offset));
+            if (available > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("range is too large for a byte array, use decryptRange");
+            }
+            byte[] decryptedBytes = new byte[(int) available];
+            rangeDecryptor.decrypt(offset, ByteBuffer.wrap(decryptedBytes));
+            return decryptedBytes;
+        }
     }
 
     /**
@@ -251,25 +510,25 @@ public class JCryptoUtils {
      * @param blockIndex Long
      * @return IvParameterSpec
      */
-    //@Deprecated("包含在decryptPartial")
-    private static IvParameterSpec calculateIVForBlock(IvParameterSpec iv, long blockIndex) {
+    static IvParameterSpec calculateIVForBlock(IvParameterSpec iv, long blockIndex) {
+        int ivSize = iv.getIV().length; // AES為16 bytes，DES為8 bytes
         BigInteger biginIV = new BigInteger(1, iv.getIV());
         BigInteger blockIV = biginIV.add(BigInteger.valueOf(blockIndex));
         byte[] blockIVBytes = blockIV.toByteArray();
 
-        // Normalize the blockIVBytes as 16 bytes for IV
-        if(blockIVBytes.length == BLOCK_SIZE)
+        // Normalize the blockIVBytes as ivSize bytes for IV
+        if(blockIVBytes.length == ivSize)
             return new IvParameterSpec(blockIVBytes);
-        else if(blockIVBytes.length > BLOCK_SIZE){
+        else if(blockIVBytes.length > ivSize){
             // For example: if the blockIVBytes length is 18, blockIVBytes is [0],[1],...[16],[17]
             // We have to remove [0],[1] , so we change the offset = 2
-            int offset = blockIVBytes.length - BLOCK_SIZE;
-            return new IvParameterSpec(blockIVBytes, offset, BLOCK_SIZE);
+            int offset = blockIVBytes.length - ivSize;
+            return new IvParameterSpec(blockIVBytes, offset, ivSize);
         }else{
             // For example: if the blockIVBytes length is 14, blockIVBytes is [0],[1],...[12],[13]
             // We have to insert 2 bytes at head
-            byte[] newBlockIV = new byte[BLOCK_SIZE]; //: default set to 0 for 16 bytes
-            int offset = blockIVBytes.length - BLOCK_SIZE;
+            byte[] newBlockIV = new byte[ivSize]; //: default set to 0 for ivSize bytes
+            int offset = ivSize - blockIVBytes.length;
             System.arraycopy(blockIVBytes, 0, newBlockIV, offset, blockIVBytes.length);
             return new IvParameterSpec(newBlockIV);
         }
@@ -310,7 +569,7 @@ public class JCryptoUtils {
      * @throws Exception
      * @throws NoSuchAlgorithmException
      */
-    public static void test() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IOException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
+    public static void test() throws IOException, GeneralSecurityException {
         KeyGenerator keyGen = KeyGenerator.getInstance("AES"); // NoSuchAlgorithmException
         keyGen.init(256, new SecureRandom());
         SecretKey secretKey = keyGen.generateKey();
@@ -330,26 +589,30 @@ public class JCryptoUtils {
         System.out.println(tdecrypt(cipherTransformation, secretKey, iv, bs));
     }
 
+    /**
+     * 字串加密，以平台預設編碼轉為bytes；非文字資料請使用 [JCryptoStreams]
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param s String
+     * @return ByteArray
+     */
     public static byte[] tencrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, String s) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IOException, BadPaddingException, IllegalBlockSizeException {
-        Cipher cipher = Cipher.getInstance(cipherTransformation.getText());
-
-        if (cipherTransformation.isNeedIv()) {
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
-        } else {
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        }
+        Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.ENCRYPT_MODE, secretKey, iv);
 
         return cipher.doFinal(s.getBytes());
     }
 
+    /**
+     * [tencrypt] 的反向，以平台預設編碼解碼
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray
+     * @param bs ByteArray
+     * @return String
+     */
     public static String tdecrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, byte[] bs) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IOException, BadPaddingException, IllegalBlockSizeException {
-        Cipher cipher = Cipher.getInstance(cipherTransformation.getText());
-
-        if (cipherTransformation.isNeedIv()) {
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
-        } else {
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        }
+        Cipher cipher = JCipherCache.getInitialized(cipherTransformation, Cipher.DECRYPT_MODE, secretKey, iv);
 
         return new String(cipher.doFinal(bs));
     }
@@ -0,0 +1,174 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+import model.JContainerHeader;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * CTR密文檔的唯讀SeekableByteChannel，read時回傳明文
+ *
+ * position可以設定到任意byte，檔案與Cipher在多次read之間保持開啟，
+ * 連續讀取時不需重新init，只有position跳動時才重新計算counter。
+ * 有 [JContainerHeader] 的檔案以檔頭的演算法與iv為準，position 0對應檔頭之後的第一個byte
+ * @property cipherTransformation JCipherTransformation 必須是CTR，有檔頭時不使用
+ * @property secretKey SecretKey
+ * @property iv ByteArray 起始counter，有檔頭時不使用
+ * @property cipherTextFile File
+ * @constructor
+ */
+public class JCtrDecryptingChannel implements SeekableByteChannel {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Cipher cipher;
+    private final SecretKey secretKey;
+    private final IvParameterSpec iv;
+    private final int blockSize;
+    // 密文在檔案中的起點與明文長度，沒有檔頭時為0與檔案大小
+    private final long dataOffset;
+    private final long plaintextLength;
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private long position = 0;
+    // cipher的keystream是否已經對齊目前的position
+    private boolean aligned = false;
+
+    public JCtrDecryptingChannel(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException {
+        FileChannel channel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (JContainerHeader.isContainer(channel)) {
+                JContainerHeader header = JContainerHeader.read(channel);
+                if (header.hasFlag(JContainerHeader.FLAG_DEFLATE) || header.hasFlag(JContainerHeader.FLAG_SEGMENTED_AEAD)) {
+                    throw new IllegalArgumentException(cipherTextFile + " is compressed or segmented and cannot be read randomly");
+                }
+                cipherTransformation = header.cipherTransformation;
+                iv = header.iv;
+                this.dataOffset = header.getDataOffset();
+                this.plaintextLength = header.plaintextLength;
+            } else {
+                this.dataOffset = 0;
+                this.plaintextLength = channel.size();
+            }
+            if (!"CTR".equalsIgnoreCase(cipherTransformation.operation)) {
+                throw new IllegalArgumentException(cipherTransformation.getText() + " is not a CTR transformation");
+            }
+            // Channel會長時間持有Cipher，因此不使用JCipherCache裡屬於執行緒的instance
+            this.cipher = JProviderSelector.newCipher(cipherTransformation.algorithm + "/CTR/NoPadding");
+        } catch (IOException | NoSuchAlgorithmException | NoSuchPaddingException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.channel = channel;
+        this.blockSize = cipher.getBlockSize();
+        this.secretKey = secretKey;
+        this.iv = new IvParameterSpec(iv);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        long size = plaintextLength;
+        if (position >= size) {
+            return -1;
+        }
+
+        try {
+            if (!aligned) {
+                alignCipher();
+            }
+
+            int toRead = (int) Math.min(Math.min(dst.remaining(), readBuf.capacity()), size - position);
+            readBuf.clear().limit(toRead);
+            int readBytes = channel.read(readBuf, dataOffset + position);
+            if (readBytes <= 0) {
+                return readBytes;
+            }
+            readBuf.flip();
+            cipher.update(readBuf, dst);
+            position += readBytes;
+            return readBytes;
+        } catch (ShortBufferException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 以position所在block的counter重新init，再丟棄block內position之前的keystream
+     */
+    private void alignCipher() throws InvalidKeyException, InvalidAlgorithmParameterException, ShortBufferException {
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, JCryptoUtils.calculateIVForBlock(iv, position / blockSize));
+        int skip = (int) (position % blockSize);
+        if (skip > 0) {
+            byte[] skipped = new byte[skip];
+            cipher.update(skipped, 0, skip, skipped);
+        }
+        aligned = true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        if (newPosition != position) {
+            position = newPosition;
+            aligned = false;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return plaintextLength;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
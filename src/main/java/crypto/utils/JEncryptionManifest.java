@@ -0,0 +1,230 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 記錄已加密過的檔案，讓批次加密只處理新增或修改過的檔案
+ *
+ * 每一行: size \t mtime \t hmac \t parameters \t keyFingerprint \t 來源檔絕對路徑
+ * 檢查時先比對size與mtime，兩者相同就直接略過；不同時才計算內容的HMAC-SHA256，內容相同(只有被touch)則只更新mtime。
+ * hash在加密之前計算，加密途中檔案被修改時下次執行會因為hash不同而重新加密。
+ * HMAC的key由加密用的key導出，沒有key無法以manifest中的值猜測或比對明文內容。
+ * parameters為transformation，壓縮時再加上 [DEFLATE_SUFFIX]，切換 -z 的檔案會重新加密。
+ * keyFingerprint為key的SHA-256前8 bytes，換了key的檔案會重新加密，manifest本身不會洩漏key
+ * @property manifestFile File
+ * @constructor
+ */
+public class JEncryptionManifest {
+    public static final String DEFAULT_FILE_NAME = "manifest.tsv";
+    private static final String HEADER = "# aes2 encryption manifest v2";
+    // v1記錄的是沒有key的SHA-256，讀取時捨棄，所有檔案重新加密一次後以v2寫回
+    private static final String HEADER_V1 = "# aes2 encryption manifest v1";
+    public static final String DEFLATE_SUFFIX = "+deflate";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    // 導出HMAC key用的標籤，與其他用途的key分開
+    private static final byte[] HMAC_KEY_LABEL = "aes2 manifest hmac".getBytes(StandardCharsets.US_ASCII);
+    // 每記錄這麼多筆就寫回一次，長時間的批次中斷時不會失去全部進度
+    private static final int SAVE_INTERVAL = 256;
+
+    private final File manifestFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // isUpToDate時計算的結果，加密成功後由record寫入entries
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger unsavedCount = new AtomicInteger();
+
+    /**
+     * 單一來源檔的記錄
+     */
+    public static class Entry {
+        public final long size;
+        public final long lastModified;
+        public final String hmac;
+        public final String parameters;
+        public final String keyFingerprint;
+
+        public Entry(long size, long lastModified, String hmac, String parameters, String keyFingerprint) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hmac = hmac;
+            this.parameters = parameters;
+            this.keyFingerprint = keyFingerprint;
+        }
+    }
+
+    private JEncryptionManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * 讀取manifest，檔案不存在時回傳空的manifest
+     * @param manifestFile File
+     * @return JEncryptionManifest
+     */
+    public static JEncryptionManifest load(File manifestFile) throws IOException {
+        JEncryptionManifest manifest = new JEncryptionManifest(manifestFile);
+        if (!manifestFile.exists()) {
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && line.equals(HEADER_V1)) {
+                    System.err.printf("[WARN] %s uses an old format, every file will be encrypted again\n", manifestFile);
+                    return manifest;
+                }
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                // 路徑放在最後，路徑中的tab不影響解析
+                String[] fields = line.split("\t", 6);
+                if (fields.length != 6) {
+                    throw new IOException(String.format("corrupt manifest %s at line %d", manifestFile, lineNumber));
+                }
+                try {
+                    manifest.entries.put(fields[5], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3], fields[4]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("corrupt manifest %s at line %d", manifestFile, lineNumber), e);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * 判斷來源檔是否已經以相同的transformation、壓縮設定與key加密過，且輸出檔仍存在
+     * @param sourceFile File
+     * @param outputFile File
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param compress Boolean
+     * @return Boolean true表示可以略過
+     */
+    public boolean isUpToDate(File sourceFile, File outputFile, JCipherTransformation cipherTransformation, SecretKey secretKey, boolean compress) throws IOException, GeneralSecurityException {
+        String path = sourceFile.getAbsolutePath();
+        long size = sourceFile.length();
+        long lastModified = sourceFile.lastModified();
+        String parameters = parameters(cipherTransformation, compress);
+        String keyFingerprint = fingerprint(secretKey);
+
+        Entry entry = entries.get(path);
+        boolean sameParameters = entry != null
+                && outputFile.exists()
+                && entry.parameters.equals(parameters)
+                && entry.keyFingerprint.equals(keyFingerprint);
+        if (sameParameters && entry.size == size && entry.lastModified == lastModified) {
+            return true;
+        }
+
+        String hmac = hmac(sourceFile, secretKey);
+        Entry current = new Entry(size, lastModified, hmac, parameters, keyFingerprint);
+        if (sameParameters && entry.size == size && entry.hmac.equals(hmac)) {
+            // 內容沒變，只更新mtime，下次就不需要再計算hash
+            put(path, current);
+            return true;
+        }
+        pending.put(path, current);
+        return false;
+    }
+
+    /**
+     * 加密成功後記錄，使用 [isUpToDate] 在加密前取得的size、mtime與hash
+     * @param sourceFile File
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param compress Boolean
+     * @return Unit
+     */
+    public void record(File sourceFile, JCipherTransformation cipherTransformation, SecretKey secretKey, boolean compress) throws IOException, GeneralSecurityException {
+        String path = sourceFile.getAbsolutePath();
+        Entry entry = pending.remove(path);
+        if (entry == null) {
+            entry = new Entry(sourceFile.length(), sourceFile.lastModified(), hmac(sourceFile, secretKey), parameters(cipherTransformation, compress), fingerprint(secretKey));
+        }
+        put(path, entry);
+    }
+
+    /**
+     * 寫回manifest，先寫到暫存檔再取代，寫到一半中斷不會破壞原本的manifest
+     * @return Unit
+     */
+    public synchronized void save() throws IOException {
+        File parent = manifestFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parent.toPath());
+        File tempFile = new File(parent, manifestFile.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(String.format("%d\t%d\t%s\t%s\t%s\t%s", entry.size, entry.lastModified, entry.hmac, entry.parameters, entry.keyFingerprint, e.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        unsavedCount.set(0);
+    }
+
+    private void put(String path, Entry entry) throws IOException {
+        entries.put(path, entry);
+        if (unsavedCount.incrementAndGet() >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    private static String fingerprint(SecretKey secretKey) throws NoSuchAlgorithmException {
+        return String.format("%016x", JKeyManifest.keyId(secretKey));
+    }
+
+    private static String parameters(JCipherTransformation cipherTransformation, boolean compress) {
+        return compress ? cipherTransformation.getText() + DEFLATE_SUFFIX : cipherTransformation.getText();
+    }
+
+    /**
+     * 以加密用的key導出的HMAC key計算檔案內容的HMAC-SHA256
+     * @param file File
+     * @param secretKey SecretKey
+     * @return String hex
+     */
+    private static String hmac(File file, SecretKey secretKey) throws IOException, GeneralSecurityException {
+        Mac keyDerivation = Mac.getInstance(HMAC_ALGORITHM);
+        keyDerivation.init(new SecretKeySpec(secretKey.getEncoded(), HMAC_ALGORITHM));
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(keyDerivation.doFinal(HMAC_KEY_LABEL), HMAC_ALGORITHM));
+
+        byte[] buffer = new byte[JCipherFileIO.DEFAULT_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                mac.update(buffer, 0, bytesRead);
+            }
+        }
+        byte[] hash = mac.doFinal();
+        return toHex(hash, hash.length);
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            sb.append(String.format("%02x", bytes[i]));
+        }
+        return sb.toString();
+    }
+}
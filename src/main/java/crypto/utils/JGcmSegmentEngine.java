@@ -0,0 +1,214 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+import model.JContainerHeader;
+import model.JTransferMetrics;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分段AES-GCM，提供完整性驗證
+ *
+ * 明文切成固定大小的segment，每個segment各自加密並附上tag，
+ * nonce由檔案nonce與segment編號XOR而來，AAD為segment編號與「是否為最後一段」，
+ * 因此segment被調換、截斷或附加都會驗證失敗。各segment互相獨立，可以平行加密與驗證，
+ * 每個worker只需要一個segment大小的buffer
+ * @property threadCount Int 單一檔案最多同時使用的worker數
+ * @property segmentSize Int 每個segment的明文大小
+ * @constructor
+ */
+public class JGcmSegmentEngine {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private final int threadCount;
+    private final int segmentSize;
+
+    public JGcmSegmentEngine() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    public JGcmSegmentEngine(int threadCount, int segmentSize) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.threadCount = threadCount;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 判斷是否使用分段GCM
+     * @param cipherTransformation JCipherTransformation
+     * @return Boolean
+     */
+    public static boolean isSupported(JCipherTransformation cipherTransformation) {
+        return "GCM".equalsIgnoreCase(cipherTransformation.operation);
+    }
+
+    /**
+     * 加密，輸出檔為 [JContainerHeader] + 各segment的(密文 + tag)
+     *
+     * nonce每次都以SecureRandom重新產生並記錄在檔頭，同一把key重複使用nonce會破壞GCM的安全性，
+     * 因此不接受外部指定的iv
+     * @param algorithm String 區塊大小為128 bits的演算法，ex: "AES"
+     * @param secretKey SecretKey
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    public void encrypt(String algorithm, SecretKey secretKey, File originFile, File encryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        JCipherTransformation cipherTransformation = new JCipherTransformation(algorithm, "GCM", "NoPadding", NONCE_LENGTH);
+
+        try (FileChannel inChannel = FileChannel.open(originFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long length = inChannel.size();
+            int segmentCount = getSegmentCount(length);
+            long[] segmentOffsets = new long[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segmentOffsets[i] = (long) i * (segmentSize + TAG_LENGTH);
+            }
+
+            JContainerHeader header = new JContainerHeader(cipherTransformation, nonce, JContainerHeader.FLAG_SEGMENTED_AEAD, segmentSize, length, segmentOffsets);
+            ByteBuffer headerBytes = ByteBuffer.wrap(header.toBytes());
+            while (headerBytes.hasRemaining()) {
+                outChannel.write(headerBytes);
+            }
+
+            runWorkers(Cipher.ENCRYPT_MODE, cipherTransformation, secretKey, nonce, inChannel, 0, outChannel, headerBytes.capacity(), length, segmentCount, metrics);
+        }
+    }
+
+    /**
+     * 驗證並解密，任何一個segment驗證失敗時立即停止並刪除輸出檔
+     * @param secretKey SecretKey
+     * @param header JContainerHeader 已讀取的檔頭
+     * @param cipherTextFile File 輸入檔案
+     * @param decryptedFile File 輸出檔案 (明文)
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     * @throws javax.crypto.AEADBadTagException 資料遭竄改或金鑰錯誤
+     */
+    public void decrypt(SecretKey secretKey, JContainerHeader header, File cipherTextFile, File decryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        if (!header.hasFlag(JContainerHeader.FLAG_SEGMENTED_AEAD) || header.chunkSize != segmentSize) {
+            throw new IllegalArgumentException("header does not match this engine");
+        }
+
+        boolean success = false;
+        try (FileChannel inChannel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(decryptedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long dataOffset = header.getDataOffset();
+            int segmentCount = getSegmentCount(header.plaintextLength);
+            long expectedSize = dataOffset + header.plaintextLength + (long) segmentCount * TAG_LENGTH;
+            if (segmentCount != header.chunkOffsets.length || inChannel.size() != expectedSize) {
+                throw new IOException("encrypted file is truncated or has trailing data");
+            }
+
+            runWorkers(Cipher.DECRYPT_MODE, header.cipherTransformation, secretKey, header.iv, inChannel, dataOffset, outChannel, 0, header.plaintextLength, segmentCount, metrics);
+            success = true;
+        } finally {
+            if (!success) {
+                Files.deleteIfExists(decryptedFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * 空檔案也會有一個最後segment，確保有tag可以驗證
+     */
+    private int getSegmentCount(long plaintextLength) {
+        return (int) Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+    }
+
+    private void runWorkers(int mode, JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] nonce, FileChannel inChannel, long inOffset, FileChannel outChannel, long outOffset, long plaintextLength, int segmentCount, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        AtomicInteger nextSegment = new AtomicInteger();
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(threadCount, segmentCount); i++) {
+            futures.add(JParallelCipherEngine.WORKERS.submit(() -> {
+                try {
+                    runWorker(mode, cipherTransformation, secretKey, nonce, inChannel, inOffset, outChannel, outOffset, plaintextLength, segmentCount, nextSegment, metrics);
+                } catch (Exception e) {
+                    // 讓其他worker不再取得新的工作
+                    nextSegment.set(segmentCount);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        // 有segment驗證失敗時，其他worker不再讀取後面的segment，全部結束後才回傳
+        JParallelCipherEngine.awaitAll(futures, () -> nextSegment.set(segmentCount), "segmented GCM");
+    }
+
+    private void runWorker(int mode, JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] nonce, FileChannel inChannel, long inOffset, FileChannel outChannel, long outOffset, long plaintextLength, int segmentCount, AtomicInteger nextSegment, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        Cipher cipher = JCipherCache.getInstance(cipherTransformation);
+        ByteBuffer inBuf = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+        ByteBuffer outBuf = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+        byte[] segmentNonce = new byte[NONCE_LENGTH];
+        byte[] aad = new byte[9];
+        boolean encrypting = mode == Cipher.ENCRYPT_MODE;
+
+        int segmentIndex;
+        while ((segmentIndex = nextSegment.getAndIncrement()) < segmentCount) {
+            long plainPosition = (long) segmentIndex * segmentSize;
+            long cipherPosition = (long) segmentIndex * (segmentSize + TAG_LENGTH);
+            int plainSize = (int) Math.min(segmentSize, plaintextLength - plainPosition);
+            boolean last = segmentIndex == segmentCount - 1;
+
+            long readPosition = inOffset + (encrypting ? plainPosition : cipherPosition);
+            inBuf.clear().limit(encrypting ? plainSize : plainSize + TAG_LENGTH);
+            while (inBuf.hasRemaining()) {
+                if (inChannel.read(inBuf, readPosition + inBuf.position()) < 0) {
+                    throw new EOFException("unexpected end of file at " + (readPosition + inBuf.position()));
+                }
+            }
+            inBuf.flip();
+
+            deriveNonce(nonce, segmentIndex, segmentNonce);
+            ByteBuffer.wrap(aad).putLong(segmentIndex).put((byte) (last ? 1 : 0));
+            cipher.init(mode, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, segmentNonce));
+            cipher.updateAAD(aad);
+            outBuf.clear();
+            cipher.doFinal(inBuf, outBuf);
+            outBuf.flip();
+
+            long writePosition = outOffset + (encrypting ? cipherPosition : plainPosition);
+            while (outBuf.hasRemaining()) {
+                outChannel.write(outBuf, writePosition + outBuf.position());
+            }
+            if (metrics != null) metrics.addBytes(plainSize);
+        }
+    }
+
+    /**
+     * segment nonce = 檔案nonce，後8 bytes與segment編號XOR
+     */
+    private static void deriveNonce(byte[] nonce, long segmentIndex, byte[] segmentNonce) {
+        System.arraycopy(nonce, 0, segmentNonce, 0, NONCE_LENGTH);
+        for (int i = 0; i < 8; i++) {
+            segmentNonce[NONCE_LENGTH - 1 - i] ^= (byte) (segmentIndex >>> (8 * i));
+        }
+    }
+}
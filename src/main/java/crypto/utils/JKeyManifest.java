@@ -0,0 +1,363 @@
+package crypto.utils;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 產生的key與每個加密檔iv的二進位manifest
+ *
+ * 格式 (big-endian): magic(8) | version(2) | record...
+ * record: type(1) | length(4) | payload | crc32(4)
+ * - KEY:   keyId(8) | algorithm(UTF) | keyLength(2) | key
+ * - ENTRY: keyId(8) | ivLength(2) | iv | 加密檔路徑(UTF)，相對於manifest所在目錄並以「/」分隔，
+ *          整個目錄搬移或複製後仍然有效；不在該目錄下的加密檔 (以及舊版的記錄) 為絕對路徑
+ *
+ * 只會在檔尾附加，所有record經由同一個FileChannel寫入；ENTRY每 [SYNC_INTERVAL] 筆才fsync一次，
+ * KEY則立即fsync，避免key遺失後加密檔無法解密。開啟時掃描一次建立HashMap索引，之後查詢為O(1)，
+ * 寫到一半中斷的最後一筆record (延伸到檔尾) 會先備份整個檔案再截掉；中間的record損壞時只略過該筆，
+ * 不會截斷，其後的key與entry仍然保留。
+ * 同一個manifest檔在同一個JVM中只會開啟一次 (見 [open])，可由多個執行緒同時使用
+ * @property manifestFile File
+ * @constructor
+ */
+public class JKeyManifest {
+    public static final String DEFAULT_FILE_NAME = "keys.bin";
+    private static final byte[] MAGIC = new byte[]{'A', 'E', 'S', '2', 'K', 'E', 'Y', 'S'};
+    private static final short VERSION = 1;
+    private static final byte TYPE_KEY = 1;
+    private static final byte TYPE_ENTRY = 2;
+    private static final int SYNC_INTERVAL = 256;
+
+    private static final Map<Path, JKeyManifest> OPENED = new HashMap<>();
+
+    private final File manifestFile;
+    // ENTRY路徑的基準目錄
+    private final Path baseDirectory;
+    private final FileChannel channel;
+    private final Map<Long, SecretKey> keys = new LinkedHashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int unsyncedCount = 0;
+
+    /**
+     * 加密檔對應的key與iv
+     */
+    public static class Entry {
+        public final long keyId;
+        public final byte[] iv;
+
+        public Entry(long keyId, byte[] iv) {
+            this.keyId = keyId;
+            this.iv = iv;
+        }
+    }
+
+    private JKeyManifest(File manifestFile) throws IOException {
+        this.manifestFile = manifestFile;
+        this.baseDirectory = manifestFile.getAbsoluteFile().toPath().normalize().getParent();
+        Files.createDirectories(manifestFile.getAbsoluteFile().getParentFile().toPath());
+        this.channel = FileChannel.open(manifestFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 2).put(MAGIC).putShort(VERSION);
+                header.flip();
+                writeFully(header, 0);
+                channel.force(true);
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 開啟manifest，同一個檔案重複開啟時回傳同一個instance
+     * @param manifestFile File 不存在時建立
+     * @return JKeyManifest
+     */
+    public static JKeyManifest open(File manifestFile) throws IOException {
+        Path path = manifestFile.getAbsoluteFile().toPath().normalize();
+        synchronized (OPENED) {
+            JKeyManifest manifest = OPENED.get(path);
+            if (manifest == null) {
+                manifest = new JKeyManifest(path.toFile());
+                OPENED.put(path, manifest);
+            }
+            return manifest;
+        }
+    }
+
+    /**
+     * 開啟encryptedFile所在目錄的manifest，不存在時回傳null
+     * @param encryptedFile File
+     * @return JKeyManifest
+     */
+    public static JKeyManifest openFor(File encryptedFile) throws IOException {
+        File manifestFile = new File(encryptedFile.getAbsoluteFile().getParentFile(), DEFAULT_FILE_NAME);
+        return manifestFile.exists() ? open(manifestFile) : null;
+    }
+
+    /**
+     * 關閉所有開啟中的manifest，程式結束前呼叫
+     * @return Unit
+     */
+    public static void closeAll() throws IOException {
+        List<JKeyManifest> manifests;
+        synchronized (OPENED) {
+            manifests = new ArrayList<>(OPENED.values());
+        }
+        for (JKeyManifest manifest : manifests) {
+            manifest.close();
+        }
+    }
+
+    /**
+     * key的識別碼: SHA-256(key)的前8 bytes，不會洩漏key本身
+     * @param secretKey SecretKey
+     * @return Long
+     */
+    public static long keyId(SecretKey secretKey) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(secretKey.getEncoded());
+        return ByteBuffer.wrap(digest, 0, 8).getLong();
+    }
+
+    /**
+     * 記錄key，已記錄過的key不會重複寫入
+     * @param secretKey SecretKey
+     * @return Long keyId
+     */
+    public synchronized long addKey(SecretKey secretKey) throws IOException, NoSuchAlgorithmException {
+        long keyId = keyId(secretKey);
+        if (keys.containsKey(keyId)) {
+            return keyId;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(keyId);
+        out.writeUTF(secretKey.getAlgorithm());
+        out.writeShort(secretKey.getEncoded().length);
+        out.write(secretKey.getEncoded());
+        append(TYPE_KEY, bytes.toByteArray());
+        // key遺失會讓所有加密檔無法解密，不等待同批次
+        sync();
+        keys.put(keyId, secretKey);
+        return keyId;
+    }
+
+    /**
+     * 記錄加密檔使用的key與iv
+     * @param encryptedFile File
+     * @param keyId Long [addKey] 的回傳值
+     * @param iv ByteArray
+     * @return Unit
+     */
+    public synchronized void addEntry(File encryptedFile, long keyId, byte[] iv) throws IOException {
+        String path = entryPath(encryptedFile);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(keyId);
+        out.writeShort(iv.length);
+        out.write(iv);
+        out.writeUTF(path);
+        append(TYPE_ENTRY, bytes.toByteArray());
+        entries.put(path, new Entry(keyId, iv.clone()));
+
+        if (++unsyncedCount >= SYNC_INTERVAL) {
+            sync();
+        }
+    }
+
+    /**
+     * 查詢加密檔的記錄
+     * @param encryptedFile File
+     * @return Entry 沒有記錄時回傳null
+     */
+    public synchronized Entry getEntry(File encryptedFile) {
+        Entry entry = entries.get(entryPath(encryptedFile));
+        // 舊版以絕對路徑記錄
+        return entry != null ? entry : entries.get(encryptedFile.getAbsolutePath());
+    }
+
+    /**
+     * @param keyId Long
+     * @return SecretKey 沒有記錄時回傳null
+     */
+    public synchronized SecretKey getKey(long keyId) {
+        return keys.get(keyId);
+    }
+
+    /**
+     * 所有記錄的key，依記錄順序；加密檔沒有ENTRY (尚未fsync就中斷) 時用來嘗試解密
+     * @return List<SecretKey>
+     */
+    public synchronized List<SecretKey> getKeys() {
+        return new ArrayList<>(keys.values());
+    }
+
+    /**
+     * 將尚未fsync的record寫入磁碟
+     * @return Unit
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+        unsyncedCount = 0;
+    }
+
+    public void close() throws IOException {
+        synchronized (OPENED) {
+            OPENED.remove(manifestFile.getAbsoluteFile().toPath().normalize());
+        }
+        synchronized (this) {
+            if (channel.isOpen()) {
+                sync();
+                channel.close();
+            }
+        }
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(1 + 4 + payload.length + 4);
+        record.put(type).putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        writeFully(record, channel.size());
+    }
+
+    /**
+     * ENTRY記錄的路徑: manifest目錄下的檔案為相對路徑，其他為絕對路徑
+     */
+    private String entryPath(File encryptedFile) {
+        Path path = encryptedFile.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(baseDirectory)) {
+            return path.toString();
+        }
+        return baseDirectory.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 掃描整個manifest建立索引
+     *
+     * 延伸到檔尾的不完整或crc錯誤record視為寫到一半中斷，備份後截斷；
+     * 檔案中間的一筆crc錯誤record略過並保留其後的record，再出現第二個錯誤時表示長度欄位也已損壞，
+     * 無法判斷record的邊界，不修改檔案並拋出IOException
+     */
+    private void load() throws IOException {
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.readShort() != VERSION) {
+            throw new IOException(manifestFile + " is not a key manifest");
+        }
+
+        long position = MAGIC.length + 2;
+        long size = channel.size();
+        // 已略過的損壞record位置，-1表示沒有
+        long skippedPosition = -1;
+        while (position < size) {
+            if (size - position < 1 + 4 + 4) {
+                truncateTornTail(position, size, skippedPosition);
+                return;
+            }
+            byte type = in.readByte();
+            int length = in.readInt();
+            long end = position + 1 + 4 + (long) length + 4;
+            if (length < 0 || end > size) {
+                truncateTornTail(position, size, skippedPosition);
+                return;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            boolean valid = in.readInt() == (int) crc.getValue();
+            if (valid) {
+                try {
+                    readRecord(type, payload);
+                } catch (EOFException | UTFDataFormatException e) {
+                    valid = false;
+                }
+            }
+            if (!valid) {
+                if (end == size) {
+                    truncateTornTail(position, size, skippedPosition);
+                    return;
+                }
+                if (skippedPosition >= 0) {
+                    throw corrupted(skippedPosition, position);
+                }
+                System.out.printf("[WARN] %s: skipping corrupted record at offset %d (%d bytes), later records are kept\n", manifestFile, position, end - position);
+                skippedPosition = position;
+            }
+            position = end;
+        }
+    }
+
+    /**
+     * 截斷寫到一半中斷的最後一筆record，截斷前先複製整個檔案
+     */
+    private void truncateTornTail(long position, long size, long skippedPosition) throws IOException {
+        if (skippedPosition >= 0) {
+            // 前面已經有損壞的record，這裡的「不完整」可能只是長度欄位錯誤造成的錯位
+            throw corrupted(skippedPosition, position);
+        }
+        File backup = new File(manifestFile.getPath() + ".bak-" + System.currentTimeMillis());
+        Files.copy(manifestFile.toPath(), backup.toPath());
+        System.out.printf("[WARN] %s: discarding %d bytes of an incomplete last record, the original file was copied to %s\n", manifestFile, size - position, backup);
+        channel.truncate(position);
+    }
+
+    private IOException corrupted(long firstPosition, long secondPosition) {
+        return new IOException(String.format("%s: corrupted records at offsets %d and %d, record boundaries are lost; the file was not modified", manifestFile, firstPosition, secondPosition));
+    }
+
+    private void readRecord(byte type, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long keyId = in.readLong();
+        if (type == TYPE_KEY) {
+            String algorithm = in.readUTF();
+            byte[] key = new byte[in.readShort()];
+            in.readFully(key);
+            keys.put(keyId, new SecretKeySpec(key, algorithm));
+        } else if (type == TYPE_ENTRY) {
+            byte[] iv = new byte[in.readShort()];
+            in.readFully(iv);
+            entries.put(in.readUTF(), new Entry(keyId, iv));
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+import model.JTransferMetrics;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多核心平行加解密引擎
+ *
+ * CTR模式下每個block的counter都能事先算出 (見 [JCryptoUtils.calculateIVForBlock])，
+ * 因此將檔案切成多個chunk，每個worker使用自己的Cipher從該chunk的counter開始處理，
+ * 再寫回輸出檔的相同offset，結果與單執行緒的 [JCryptoUtils.encrypt] 完全相同。
+ * ECB的block之間沒有關聯；CBC解密時每個block只需要前一個密文block，
+ * 因此chunk以前一個chunk的最後一個密文block作為iv。padding只在最後一個chunk處理，
+ * 其餘chunk以NoPadding的Cipher處理，輸入輸出大小相同
+ * @property threadCount Int 單一檔案最多同時使用的worker數
+ * @property chunkSize Int 每個chunk的大小，必須是block大小的倍數
+ * @constructor
+ */
+public class JParallelCipherEngine {
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // 所有檔案共用的worker，避免多個檔案同時處理時執行緒數量暴增
+    static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "parallel-cipher-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+
+    private final int threadCount;
+    private final int chunkSize;
+
+    public JParallelCipherEngine() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public JParallelCipherEngine(int threadCount, int chunkSize) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        if (chunkSize <= 0 || chunkSize % 16 != 0) {
+            throw new IllegalArgumentException("chunkSize must be a positive multiple of 16");
+        }
+        this.threadCount = threadCount;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 判斷加密與解密是否都可以平行處理 (CTR, ECB)
+     * @param cipherTransformation JCipherTransformation
+     * @return Boolean
+     */
+    public static boolean isSupported(JCipherTransformation cipherTransformation) {
+        return "CTR".equalsIgnoreCase(cipherTransformation.operation) || "ECB".equalsIgnoreCase(cipherTransformation.operation);
+    }
+
+    /**
+     * 判斷指定方向是否可以平行處理，CBC只有解密可以
+     * @param cipherTransformation JCipherTransformation
+     * @param mode Int Cipher.ENCRYPT_MODE / Cipher.DECRYPT_MODE
+     * @return Boolean
+     */
+    public static boolean isSupported(JCipherTransformation cipherTransformation, int mode) {
+        return isSupported(cipherTransformation)
+                || (mode == Cipher.DECRYPT_MODE && "CBC".equalsIgnoreCase(cipherTransformation.operation));
+    }
+
+    /**
+     * 平行加密
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray 起始counter
+     * @param originFile File 輸入檔案 (明文)
+     * @param encryptedFile File 輸出檔案 (密文)
+     * @return Unit
+     */
+    public void encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile) throws IOException, GeneralSecurityException {
+        process(Cipher.ENCRYPT_MODE, cipherTransformation, secretKey, iv, originFile, encryptedFile, null);
+    }
+
+    public void encrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File originFile, File encryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        process(Cipher.ENCRYPT_MODE, cipherTransformation, secretKey, iv, originFile, encryptedFile, metrics);
+    }
+
+    /**
+     * 平行解密
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray 起始counter，CBC為iv
+     * @param cipherTextFile File 輸入檔案 (密文)
+     * @param decryptedFile File 輸出檔案 (明文)
+     * @return Unit
+     */
+    public void decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, File decryptedFile) throws IOException, GeneralSecurityException {
+        process(Cipher.DECRYPT_MODE, cipherTransformation, secretKey, iv, cipherTextFile, decryptedFile, null);
+    }
+
+    public void decrypt(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile, File decryptedFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        process(Cipher.DECRYPT_MODE, cipherTransformation, secretKey, iv, cipherTextFile, decryptedFile, metrics);
+    }
+
+    private void process(int mode, JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File inputFile, File outputFile, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        try (FileChannel inChannel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            process(mode, cipherTransformation, secretKey, iv, inChannel, 0, inChannel.size(), outChannel, 0, metrics);
+        }
+    }
+
+    /**
+     * 平行處理inChannel中 [inOffset, inOffset + length) 的資料，寫到outChannel從outOffset開始的位置
+     * @param mode Int Cipher.ENCRYPT_MODE / Cipher.DECRYPT_MODE
+     * @param cipherTransformation JCipherTransformation
+     * @param secretKey SecretKey
+     * @param iv ByteArray 起始counter或CBC的iv，對應inOffset；ECB不使用
+     * @param inChannel FileChannel
+     * @param inOffset Long
+     * @param length Long
+     * @param outChannel FileChannel
+     * @param outOffset Long
+     * @param metrics JTransferMetrics 可為null
+     * @return Unit
+     */
+    void process(int mode, JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, FileChannel inChannel, long inOffset, long length, FileChannel outChannel, long outOffset, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        if (!isSupported(cipherTransformation, mode)) {
+            throw new IllegalArgumentException(cipherTransformation.getText() + " cannot be processed in parallel");
+        }
+
+        // 空的輸入仍需一個chunk執行doFinal，讓padding模式輸出一個區塊
+        int chunkCount = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+        AtomicInteger nextChunk = new AtomicInteger();
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(threadCount, chunkCount); i++) {
+            futures.add(WORKERS.submit(() -> {
+                try {
+                    runWorker(mode, cipherTransformation, secretKey, iv, inChannel, inOffset, length, outChannel, outOffset, chunkCount, nextChunk, metrics);
+                } catch (Exception e) {
+                    // 讓其他worker不再取得新的工作
+                    nextChunk.set(chunkCount);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        // 其中一個worker失敗或呼叫端被中斷時，讓其他worker不再取得新的chunk
+        awaitAll(futures, () -> nextChunk.set(chunkCount), "parallel cipher");
+    }
+
+    /**
+     * 等待所有worker結束後才回傳，再拋出第一個失敗的原因。
+     * 不使用cancel，呼叫端關閉或刪除輸出檔時不會有worker還在寫入
+     * @param futures List<Future>
+     * @param stopHandout Runnable 第一次失敗或被中斷時呼叫，停止分配新的工作，可為null
+     * @param name String 中斷時的錯誤訊息
+     * @return Unit
+     */
+    static void awaitAll(List<? extends Future<?>> futures, Runnable stopHandout, String name) throws IOException, GeneralSecurityException {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // 中斷時仍要等worker結束，只記下狀態
+                    if (!interrupted && stopHandout != null) stopHandout.run();
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        if (stopHandout != null) stopHandout.run();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof GeneralSecurityException) throw (GeneralSecurityException) failure;
+        if (failure != null) throw new IOException(failure);
+        if (interrupted) throw new IOException(name + " interrupted");
+    }
+
+    /**
+     * 已經失敗時等待剩下的worker結束，忽略它們的結果
+     * @param futures Iterable<Future>
+     * @return Unit
+     */
+    static void awaitQuietly(Iterable<? extends Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * worker主體，不斷取得下一個chunk處理，Cipher與buffer在同一個worker內重複使用
+     */
+    private void runWorker(int mode, JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, FileChannel inChannel, long inOffset, long length, FileChannel outChannel, long outOffset, int chunkCount, AtomicInteger nextChunk, JTransferMetrics metrics) throws IOException, GeneralSecurityException {
+        String operation = cipherTransformation.operation;
+        Cipher finalCipher = JCipherCache.getInstance(cipherTransformation);
+        Cipher chunkCipher = JCipherCache.getInstance(new JCipherTransformation(cipherTransformation.algorithm, operation, "NoPadding", cipherTransformation.ivSizeForBytes));
+        int blockSize = finalCipher.getBlockSize();
+        ByteBuffer inBuf = ByteBuffer.allocate(chunkSize);
+        // 加密時最後一個chunk的padding最多多出一個block
+        ByteBuffer outBuf = ByteBuffer.allocate(chunkSize + blockSize);
+        ByteBuffer previousBlock = ByteBuffer.allocate(blockSize);
+        IvParameterSpec baseIv = "ECB".equalsIgnoreCase(operation) ? null : new IvParameterSpec(iv);
+
+        int chunkIndex;
+        while ((chunkIndex = nextChunk.getAndIncrement()) < chunkCount) {
+            long position = (long) chunkIndex * chunkSize;
+            int size = (int) Math.min(chunkSize, length - position);
+
+            inBuf.clear().limit(size);
+            while (inBuf.hasRemaining()) {
+                if (inChannel.read(inBuf, inOffset + position + inBuf.position()) < 0) {
+                    throw new EOFException("unexpected end of file at " + (inOffset + position + inBuf.position()));
+                }
+            }
+            inBuf.flip();
+
+            Cipher cipher = chunkIndex == chunkCount - 1 ? finalCipher : chunkCipher;
+            if (baseIv == null) {
+                cipher.init(mode, secretKey);
+            } else if ("CBC".equalsIgnoreCase(operation)) {
+                cipher.init(mode, secretKey, position == 0 ? baseIv : new IvParameterSpec(readPreviousBlock(inChannel, inOffset + position, previousBlock)));
+            } else {
+                cipher.init(mode, secretKey, JCryptoUtils.calculateIVForBlock(baseIv, position / blockSize));
+            }
+            outBuf.clear();
+            cipher.doFinal(inBuf, outBuf);
+            outBuf.flip();
+
+            while (outBuf.hasRemaining()) {
+                outChannel.write(outBuf, outOffset + position + outBuf.position());
+            }
+            if (metrics != null) metrics.addBytes(size);
+        }
+    }
+
+    /**
+     * 讀取position前一個block的密文，作為CBC解密這個chunk的iv
+     */
+    private static byte[] readPreviousBlock(FileChannel inChannel, long position, ByteBuffer block) throws IOException {
+        block.clear();
+        long blockPosition = position - block.capacity();
+        while (block.hasRemaining()) {
+            if (inChannel.read(block, blockPosition + block.position()) < 0) {
+                throw new EOFException("unexpected end of file at " + (blockPosition + block.position()));
+            }
+        }
+        return block.array().clone();
+    }
+}
@@ -0,0 +1,403 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 量測每個已安裝的Provider處理各transformation的速度，之後的Cipher都向最快的Provider取得
+ *
+ * 預設的Cipher.getInstance(String)只會使用優先順序最高的Provider，
+ * 但依JVM與是否啟用AES intrinsics，其他Provider可能快很多。
+ * 尚未量測的transformation維持使用預設Provider，因此量測可以在背景進行。
+ *
+ * 每個Provider先暖機到Cipher的迴圈由C2編譯後才計時，加密與解密都量測，
+ * 重複多次取最快的一次。已知要用哪個Provider時可以用 [PROVIDER_PROPERTY] 或 [pin] 指定，不再量測。
+ *
+ * 只有一個Provider支援的演算法不量測；量測結果寫入 [CALIBRATION_FILE_PROPERTY] 指定的檔案
+ * (預設 ~/.aes2/provider-calibration.properties)，JVM與Provider組合相同時下次啟動直接沿用，
+ * 刪除該檔案即重新量測
+ */
+public class JProviderSelector {
+    // 指定Provider名稱的system property，ex: -Daes2.provider=SunJCE
+    public static final String PROVIDER_PROPERTY = "aes2.provider";
+    // 保存量測結果的檔案，設為空字串時不保存
+    public static final String CALIBRATION_FILE_PROPERTY = "aes2.calibrationFile";
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    // 量測用的資料量，需為區塊大小的倍數，讓NoPadding的ECB/CBC也能處理
+    public static final int CALIBRATION_BUFFER_SIZE = 1024 * 1024;
+    // 暖機至少處理的資料量與時間，太短時量到的是interpreter/C1而不是intrinsics
+    private static final long WARMUP_BYTES = 8L * 1024 * 1024;
+    private static final long WARMUP_NANOS = 300_000_000L;
+    // 每次量測加密與解密各處理的buffer數，重複MEASURE_TRIALS次取最快的一次
+    private static final int MEASURE_BUFFERS = 4;
+    private static final int MEASURE_TRIALS = 3;
+
+    private static final Map<String, Calibration> CALIBRATIONS = new ConcurrentHashMap<>();
+    private static volatile Provider pinned = findPinned(System.getProperty(PROVIDER_PROPERTY));
+    // 量測與讀寫檔案都在此lock內，同時開始的工作只會量測一次
+    private static final Object CALIBRATION_LOCK = new Object();
+    private static Properties persisted;
+
+    /**
+     * 單一transformation的量測結果
+     * @property transformation String "演算法/模式/填充方式"
+     * @property provider Provider 最快的Provider，沒有任何Provider支援時為null
+     * @property throughputs Map<String, Double> 各Provider加密與解密合計的MB/s，依Provider優先順序排列
+     * @property pinned Boolean 是否為指定的Provider (沒有量測，throughputs為空)
+     * @constructor
+     */
+    public static class Calibration {
+        public final String transformation;
+        public final Provider provider;
+        public final Map<String, Double> throughputs;
+        public final boolean pinned;
+
+        Calibration(String transformation, Provider provider, Map<String, Double> throughputs, boolean pinned) {
+            this.transformation = transformation;
+            this.provider = provider;
+            this.throughputs = throughputs;
+            this.pinned = pinned;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format("%-28s -> %s", transformation, provider == null ? "(unsupported)" : provider.getName()));
+            if (pinned) {
+                builder.append("  (pinned)");
+            }
+            for (Map.Entry<String, Double> entry : throughputs.entrySet()) {
+                builder.append(String.format("  %s=%.1f MB/s", entry.getKey(), entry.getValue()));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 量測畫面選項中所有的組合 ([JCipherTransformation.ALGORITHMS] x [JCipherTransformation.OPERATIONS] x [JCipherTransformation.PADDINGS])
+     * @return List<Calibration>
+     */
+    public static List<Calibration> calibrateAll() {
+        List<Calibration> calibrations = new ArrayList<>();
+        for (String algorithm : JCipherTransformation.ALGORITHMS) {
+            for (String operation : JCipherTransformation.OPERATIONS) {
+                for (String padding : JCipherTransformation.PADDINGS) {
+                    calibrations.add(calibrate(String.format("%s/%s/%s", algorithm, operation, padding)));
+                }
+            }
+        }
+        return calibrations;
+    }
+
+    /**
+     * 指定所有transformation使用的Provider，不再量測；指定的Provider不支援的transformation使用預設Provider
+     * @param providerName String null表示取消指定，之後重新量測
+     * @return Unit
+     */
+    public static void pin(String providerName) {
+        Provider provider = findPinned(providerName);
+        if (providerName != null && provider == null) {
+            throw new IllegalArgumentException("provider " + providerName + " is not installed");
+        }
+        pinned = provider;
+        CALIBRATIONS.clear();
+    }
+
+    /**
+     * 量測單一transformation，已量測過 (或保存在檔案中) 時直接回傳之前的結果
+     * @param transformation String
+     * @return Calibration
+     */
+    public static Calibration calibrate(String transformation) {
+        Calibration calibration = CALIBRATIONS.get(transformation);
+        if (calibration != null) {
+            return calibration;
+        }
+
+        Provider pinnedProvider = pinned;
+        if (pinnedProvider != null) {
+            calibration = new Calibration(transformation, supports(transformation, pinnedProvider) ? pinnedProvider : null, new LinkedHashMap<>(), true);
+            CALIBRATIONS.put(transformation, calibration);
+            return calibration;
+        }
+
+        synchronized (CALIBRATION_LOCK) {
+            calibration = CALIBRATIONS.get(transformation);
+            if (calibration != null) {
+                return calibration;
+            }
+
+            List<Provider> candidates = new ArrayList<>();
+            for (Provider provider : Security.getProviders()) {
+                if (supports(transformation, provider)) {
+                    candidates.add(provider);
+                }
+            }
+            // 沒有其他選擇時不需要量測
+            if (candidates.size() < 2) {
+                calibration = new Calibration(transformation, candidates.isEmpty() ? null : candidates.get(0), new LinkedHashMap<>(), false);
+                CALIBRATIONS.put(transformation, calibration);
+                return calibration;
+            }
+
+            calibration = loadPersisted(transformation);
+            if (calibration == null) {
+                calibration = measureAll(transformation, candidates);
+                savePersisted(calibration);
+            }
+            CALIBRATIONS.put(transformation, calibration);
+            return calibration;
+        }
+    }
+
+    private static Calibration measureAll(String transformation, List<Provider> candidates) {
+        Map<String, Double> throughputs = new LinkedHashMap<>();
+        Provider fastest = null;
+        double fastestThroughput = 0;
+        for (Provider provider : candidates) {
+            double throughput = measure(transformation, provider);
+            if (throughput <= 0) {
+                continue;
+            }
+            throughputs.put(provider.getName(), throughput);
+            if (throughput > fastestThroughput) {
+                fastest = provider;
+                fastestThroughput = throughput;
+            }
+        }
+        return new Calibration(transformation, fastest, throughputs, false);
+    }
+
+    /**
+     * 讀取保存的結果，檔案是其他JVM或Provider組合量測的則全部忽略
+     * @return Calibration 沒有保存或保存的Provider已不存在時回傳null
+     */
+    private static Calibration loadPersisted(String transformation) {
+        Properties properties = getPersisted();
+        String value = properties.getProperty(transformation);
+        if (value == null) {
+            return null;
+        }
+        // 格式: 最快的Provider|Provider=MB/s,Provider=MB/s...
+        String[] parts = value.split("\\|", 2);
+        Provider provider = Security.getProvider(parts[0]);
+        if (provider == null) {
+            return null;
+        }
+        Map<String, Double> throughputs = new LinkedHashMap<>();
+        if (parts.length > 1 && !parts[1].isEmpty()) {
+            for (String throughput : parts[1].split(",")) {
+                int separator = throughput.lastIndexOf('=');
+                try {
+                    throughputs.put(throughput.substring(0, separator), Double.parseDouble(throughput.substring(separator + 1)));
+                } catch (RuntimeException e) {
+                    return null;
+                }
+            }
+        }
+        return new Calibration(transformation, provider, throughputs, false);
+    }
+
+    private static void savePersisted(Calibration calibration) {
+        File file = getCalibrationFile();
+        if (file == null || calibration.provider == null) {
+            return;
+        }
+        StringBuilder value = new StringBuilder(calibration.provider.getName()).append('|');
+        for (Map.Entry<String, Double> entry : calibration.throughputs.entrySet()) {
+            if (value.charAt(value.length() - 1) != '|') {
+                value.append(',');
+            }
+            value.append(entry.getKey()).append('=').append(String.format(Locale.ROOT, "%.1f", entry.getValue()));
+        }
+        Properties properties = getPersisted();
+        properties.setProperty(calibration.transformation, value.toString());
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            System.err.printf("[WARN] cannot create %s, provider calibration is not saved\n", parent);
+            return;
+        }
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            properties.store(outputStream, "provider calibration, delete this file to measure again");
+        } catch (IOException e) {
+            System.err.printf("[WARN] cannot save provider calibration to %s: %s\n", file, e.getLocalizedMessage());
+        }
+    }
+
+    private static Properties getPersisted() {
+        if (persisted != null) {
+            return persisted;
+        }
+        persisted = new Properties();
+        String fingerprint = fingerprint();
+        File file = getCalibrationFile();
+        if (file != null && file.isFile()) {
+            Properties properties = new Properties();
+            try (InputStream inputStream = new FileInputStream(file)) {
+                properties.load(inputStream);
+                if (fingerprint.equals(properties.getProperty(FINGERPRINT_KEY))) {
+                    persisted = properties;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.printf("[WARN] cannot read provider calibration %s: %s\n", file, e.getLocalizedMessage());
+            }
+        }
+        persisted.setProperty(FINGERPRINT_KEY, fingerprint);
+        return persisted;
+    }
+
+    private static File getCalibrationFile() {
+        String path = System.getProperty(CALIBRATION_FILE_PROPERTY);
+        if (path == null) {
+            return new File(new File(System.getProperty("user.home"), ".aes2"), "provider-calibration.properties");
+        }
+        return path.isEmpty() ? null : new File(path);
+    }
+
+    /**
+     * JVM版本、架構與已安裝Provider的組合，任何一項改變都要重新量測
+     * @return String
+     */
+    @SuppressWarnings("deprecation")
+    private static String fingerprint() {
+        StringBuilder builder = new StringBuilder()
+                .append(System.getProperty("java.vm.vendor")).append(' ')
+                .append(System.getProperty("java.vm.version")).append(' ')
+                .append(System.getProperty("os.arch"));
+        for (Provider provider : Security.getProviders()) {
+            builder.append(' ').append(provider.getName()).append('-').append(provider.getVersion());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 目前選用的Provider
+     * @param transformation String
+     * @return Provider 尚未量測或沒有Provider支援時回傳null (使用預設Provider)
+     */
+    public static Provider getProvider(String transformation) {
+        Calibration calibration = CALIBRATIONS.get(transformation);
+        return calibration == null ? null : calibration.provider;
+    }
+
+    /**
+     * 以選用的Provider建立新的Cipher
+     * @param transformation String
+     * @return Cipher 尚未init
+     */
+    public static Cipher newCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Provider provider = getProvider(transformation);
+        return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    private static Provider findPinned(String providerName) {
+        return providerName == null || providerName.isEmpty() ? null : Security.getProvider(providerName);
+    }
+
+    private static boolean supports(String transformation, Provider provider) {
+        try {
+            Cipher.getInstance(transformation, provider);
+            return true;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 加密與解密交替進行，暖機後重複量測，取最快的一次
+     * @return MB/s (加密與解密的資料量合計 / 時間)，此Provider不支援該transformation時回傳0
+     */
+    private static double measure(String transformation, Provider provider) {
+        try {
+            Cipher encryptor = Cipher.getInstance(transformation, provider);
+            Cipher decryptor = Cipher.getInstance(transformation, provider);
+            String algorithm = transformation.substring(0, transformation.indexOf('/'));
+            boolean gcm = transformation.contains("/GCM/");
+            boolean ecb = transformation.contains("/ECB/");
+            SecretKeySpec key = new SecretKeySpec(new byte["DES".equals(algorithm) ? 8 : 16], algorithm);
+            byte[] iv = new byte[gcm ? JGcmSegmentEngine.NONCE_LENGTH : encryptor.getBlockSize()];
+            byte[] input = new byte[CALIBRATION_BUFFER_SIZE];
+            // padding最多多一個區塊，GCM另外附加tag
+            byte[] output = new byte[input.length + encryptor.getBlockSize() + JGcmSegmentEngine.TAG_LENGTH];
+            byte[] decrypted = new byte[output.length];
+
+            // 解密的輸入固定為同一個iv的密文，padding與GCM tag才會正確
+            init(encryptor, Cipher.ENCRYPT_MODE, key, iv, gcm, ecb);
+            byte[] cipherText = encryptor.doFinal(input);
+
+            int counter = 1;
+            long warmupStart = System.nanoTime();
+            for (long warmedUp = 0; warmedUp < WARMUP_BYTES || System.nanoTime() - warmupStart < WARMUP_NANOS; warmedUp += input.length) {
+                counter = encryptOnce(encryptor, key, iv, gcm, ecb, counter, input, output);
+                decryptOnce(decryptor, key, iv, gcm, ecb, cipherText, decrypted);
+            }
+
+            long fastest = Long.MAX_VALUE;
+            for (int trial = 0; trial < MEASURE_TRIALS; trial++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < MEASURE_BUFFERS; i++) {
+                    counter = encryptOnce(encryptor, key, iv, gcm, ecb, counter, input, output);
+                    decryptOnce(decryptor, key, iv, gcm, ecb, cipherText, decrypted);
+                }
+                fastest = Math.min(fastest, System.nanoTime() - start);
+            }
+            long elapsed = Math.max(1, fastest);
+            return 2.0 * MEASURE_BUFFERS * CALIBRATION_BUFFER_SIZE / (1024 * 1024) / (elapsed / 1e9);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Int 下一次使用的iv編號
+     */
+    private static int encryptOnce(Cipher cipher, SecretKeySpec key, byte[] iv, boolean gcm, boolean ecb, int counter, byte[] input, byte[] output) throws GeneralSecurityException {
+        // GCM不允許以相同的key與iv重複加密，每一輪換一個iv
+        byte[] roundIv = iv.clone();
+        roundIv[0] = (byte) (counter >>> 24);
+        roundIv[1] = (byte) (counter >>> 16);
+        roundIv[2] = (byte) (counter >>> 8);
+        roundIv[3] = (byte) counter;
+        init(cipher, Cipher.ENCRYPT_MODE, key, roundIv, gcm, ecb);
+        cipher.doFinal(input, 0, input.length, output);
+        return counter + 1;
+    }
+
+    private static void decryptOnce(Cipher cipher, SecretKeySpec key, byte[] iv, boolean gcm, boolean ecb, byte[] cipherText, byte[] decrypted) throws GeneralSecurityException {
+        init(cipher, Cipher.DECRYPT_MODE, key, iv, gcm, ecb);
+        cipher.doFinal(cipherText, 0, cipherText.length, decrypted);
+    }
+
+    private static void init(Cipher cipher, int mode, SecretKeySpec key, byte[] iv, boolean gcm, boolean ecb) throws GeneralSecurityException {
+        if (gcm) {
+            cipher.init(mode, key, new GCMParameterSpec(JGcmSegmentEngine.TAG_LENGTH * 8, iv));
+        } else if (ecb) {
+            cipher.init(mode, key);
+        } else {
+            cipher.init(mode, key, new IvParameterSpec(iv));
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+import model.JContainerHeader;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * 只解密密文檔中的一段明文，offset與length皆為long，可處理數十GB的檔案
+ *
+ * 結果寫到呼叫者提供的WritableByteChannel或ByteBuffer，不會一次配置整段範圍的記憶體。
+ * 範圍超過 [PARALLEL_THRESHOLD] 時切成多個chunk交給 [JParallelCipherEngine.WORKERS]，
+ * 寫到channel時依順序輸出，寫到ByteBuffer時各chunk直接解密到自己的區段
+ *
+ * CBC/CFB的segment只依賴前一段密文，從範圍前的ivLength bytes密文 (檔案開頭則為iv) 重建暫存器後即可開始解密；
+ * ECB不需要iv。OFB的keystream與密文無關，只能以全0資料快轉到範圍起點，不讀取範圍前的檔案但需要O(offset)的運算，
+ * 因此OFB不平行處理。有padding的檔案只回傳padding之前的明文
+ * @property cipherTransformation JCipherTransformation 見 [isSupported]，內部一律以NoPadding處理
+ * @property secretKey SecretKey
+ * @property iv ByteArray 明文offset 0對應的counter
+ * @property channel FileChannel 密文檔
+ * @property dataOffset Long 密文資料在檔案中的起點 (檔頭之後)
+ * @property plaintextLength Long
+ * @constructor
+ */
+public class JRangeDecryptor implements Closeable {
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final long PARALLEL_THRESHOLD = 2L * CHUNK_SIZE;
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final JCipherTransformation cipherTransformation;
+    private final SecretKey secretKey;
+    private final IvParameterSpec iv;
+    private final FileChannel channel;
+    private final long dataOffset;
+    private final long cipherTextLength;
+    private final long plaintextLength;
+    private final int threadCount = Runtime.getRuntime().availableProcessors();
+    private final String operation;
+    private final boolean ofb;
+    // 重新init後可以開始解密的位置間隔：CBC/ECB/CFB/OFB為block大小，CFB8/OFB8為1
+    private final int segmentSize;
+
+    private JRangeDecryptor(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, FileChannel channel, long dataOffset, long plaintextLength) throws IOException, GeneralSecurityException {
+        if (!isSupported(cipherTransformation)) {
+            throw new IllegalArgumentException(cipherTransformation.getText() + " does not support range decryption");
+        }
+        this.operation = cipherTransformation.operation.toUpperCase();
+        this.cipherTransformation = new JCipherTransformation(cipherTransformation.algorithm, operation, "NoPadding", cipherTransformation.ivSizeForBytes);
+        this.secretKey = secretKey;
+        this.iv = operation.equals("ECB") ? null : new IvParameterSpec(iv);
+        this.channel = channel;
+        this.dataOffset = dataOffset;
+        this.cipherTextLength = channel.size() - dataOffset;
+        this.ofb = operation.startsWith("OFB");
+
+        int blockSize = JCipherCache.getInstance(this.cipherTransformation).getBlockSize();
+        this.segmentSize = operation.length() > 3 && !operation.equals("CTR") ? Integer.parseInt(operation.substring(3)) / 8 : blockSize;
+        this.plaintextLength = plaintextLength >= 0 ? plaintextLength : cipherTextLength - readPaddingLength(cipherTransformation.padding, blockSize);
+    }
+
+    /**
+     * 判斷是否可以只解密其中一段，GCM需要驗證整個segment因此不支援
+     * @param cipherTransformation JCipherTransformation
+     * @return Boolean
+     */
+    public static boolean isSupported(JCipherTransformation cipherTransformation) {
+        String operation = cipherTransformation.operation.toUpperCase();
+        return operation.equals("CTR") || operation.equals("ECB") || operation.equals("CBC") || operation.startsWith("CFB") || operation.startsWith("OFB");
+    }
+
+    /**
+     * 開啟密文檔，有 [JContainerHeader] 時改用檔頭的設定 (同 [openContainer])；
+     * 沒有檔頭的舊格式使用參數的設定，有padding時解密最後一個block取得明文長度。
+     * 沒有檔頭且有padding的OFB不支援，最後一個block需要從檔案開頭解密才能取得明文長度
+     * @param cipherTransformation JCipherTransformation 只用於沒有檔頭的檔案
+     * @param secretKey SecretKey
+     * @param iv ByteArray 只用於沒有檔頭的檔案，ECB不使用，可為null
+     * @param cipherTextFile File
+     * @return JRangeDecryptor
+     */
+    public static JRangeDecryptor open(JCipherTransformation cipherTransformation, SecretKey secretKey, byte[] iv, File cipherTextFile) throws IOException, GeneralSecurityException {
+        FileChannel channel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (JContainerHeader.isContainer(channel)) {
+                return fromContainer(secretKey, cipherTextFile, channel);
+            }
+            if (cipherTransformation.operation.toUpperCase().startsWith("OFB") && !"NoPadding".equalsIgnoreCase(cipherTransformation.padding)) {
+                throw new IllegalArgumentException(cipherTransformation.getText() + " without a container header cannot be range decrypted, the plaintext length is unknown");
+            }
+            return new JRangeDecryptor(cipherTransformation, secretKey, iv, channel, 0, -1);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 開啟有 [JContainerHeader] 的加密檔，演算法、模式與iv由檔頭取得
+     * @param secretKey SecretKey
+     * @param cipherTextFile File
+     * @return JRangeDecryptor
+     */
+    public static JRangeDecryptor openContainer(SecretKey secretKey, File cipherTextFile) throws IOException, GeneralSecurityException {
+        FileChannel channel = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (!JContainerHeader.isContainer(channel)) {
+                throw new IOException(cipherTextFile + " has no container header");
+            }
+            return fromContainer(secretKey, cipherTextFile, channel);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static JRangeDecryptor fromContainer(SecretKey secretKey, File cipherTextFile, FileChannel channel) throws IOException, GeneralSecurityException {
+        JContainerHeader header = JContainerHeader.read(channel);
+        if (header.hasFlag(JContainerHeader.FLAG_DEFLATE) || header.hasFlag(JContainerHeader.FLAG_SEGMENTED_AEAD)) {
+            throw new IllegalArgumentException(cipherTextFile + " is compressed or segmented and cannot be range decrypted");
+        }
+        return new JRangeDecryptor(header.cipherTransformation, secretKey, header.iv, channel, header.getDataOffset(), header.plaintextLength);
+    }
+
+    public long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    /**
+     * 解密 [offset, offset + length) 並依順序寫到sink
+     * @param offset Long 明文位置
+     * @param length Long
+     * @param sink WritableByteChannel 不會被關閉
+     * @return Unit
+     */
+    public void decrypt(long offset, long length, WritableByteChannel sink) throws IOException, GeneralSecurityException {
+        checkRange(offset, length);
+        if (!operation.equals("CTR") && (ofb || length < PARALLEL_THRESHOLD)) {
+            decryptSegments(offset, length, sink);
+            return;
+        }
+        if (length < PARALLEL_THRESHOLD) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, JCipherFileIO.DEFAULT_BUFFER_SIZE));
+            for (long position = offset; position < offset + length; position += buffer.capacity()) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), offset + length - position));
+                decryptSlice(position, buffer);
+                buffer.flip();
+                writeFully(buffer, sink);
+            }
+            return;
+        }
+
+        // 最多threadCount個chunk同時解密，最前面的chunk完成後寫出，buffer再交給下一個chunk
+        Deque<Future<ByteBuffer>> running = new ArrayDeque<>();
+        Deque<ByteBuffer> free = new ArrayDeque<>();
+        long nextPosition = offset;
+        long end = offset + length;
+        try {
+            while (nextPosition < end || !running.isEmpty()) {
+                while (nextPosition < end && running.size() < threadCount) {
+                    ByteBuffer buffer = free.isEmpty() ? ByteBuffer.allocate(CHUNK_SIZE) : free.poll();
+                    buffer.clear().limit((int) Math.min(CHUNK_SIZE, end - nextPosition));
+                    long position = nextPosition;
+                    running.add(JParallelCipherEngine.WORKERS.submit(() -> {
+                        decryptSlice(position, buffer);
+                        buffer.flip();
+                        return buffer;
+                    }));
+                    nextPosition += buffer.limit();
+                }
+                ByteBuffer buffer = await(running.peek());
+                running.poll();
+                writeFully(buffer, sink);
+                free.add(buffer);
+            }
+        } finally {
+            // 失敗時已不再送出新的chunk，等還在解密的chunk結束，避免之後buffer或channel被關閉時仍在使用
+            JParallelCipherEngine.awaitQuietly(running);
+        }
+    }
+
+    /**
+     * 從offset解密dst.remaining()個bytes到dst，範圍較大時平行處理
+     * @param offset Long 明文位置
+     * @param dst ByteBuffer 完成後position前進解密的長度
+     * @return Int 解密的bytes數，超過檔尾的部分不處理
+     */
+    public int decrypt(long offset, ByteBuffer dst) throws IOException, GeneralSecurityException {
+        int length = (int) Math.min(dst.remaining(), plaintextLength - offset);
+        checkRange(offset, length);
+        int start = dst.position();
+
+        if (ofb || length < PARALLEL_THRESHOLD) {
+            ByteBuffer slice = dst.duplicate();
+            slice.limit(start + length);
+            decryptSlice(offset, slice);
+        } else {
+            List<Future<Void>> futures = new ArrayList<>();
+            try {
+                for (int chunkStart = 0; chunkStart < length; chunkStart += CHUNK_SIZE) {
+                    ByteBuffer slice = dst.duplicate();
+                    slice.position(start + chunkStart).limit(start + (int) Math.min(length, (long) chunkStart + CHUNK_SIZE));
+                    long position = offset + chunkStart;
+                    futures.add(JParallelCipherEngine.WORKERS.submit(() -> {
+                        decryptSlice(position, slice);
+                        return null;
+                    }));
+                }
+            } catch (RuntimeException e) {
+                JParallelCipherEngine.awaitQuietly(futures);
+                throw e;
+            }
+            // dst屬於呼叫端，所有chunk寫完才回傳
+            JParallelCipherEngine.awaitAll(futures, null, "range decryption");
+        }
+        dst.position(start + length);
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 解密明文 [plainPosition, plainPosition + slice.remaining()) 到slice，完成後position等於limit
+     */
+    private void decryptSlice(long plainPosition, ByteBuffer slice) throws IOException, GeneralSecurityException {
+        if (!operation.equals("CTR")) {
+            decryptSegments(plainPosition, slice.remaining(), new SliceChannel(slice));
+            return;
+        }
+
+        // CTR: 將密文讀到slice，再以同一個buffer原地解密
+        int start = slice.position();
+        long readPosition = dataOffset + plainPosition;
+        while (slice.hasRemaining()) {
+            int readBytes = channel.read(slice, readPosition + slice.position() - start);
+            if (readBytes < 0) {
+                throw new EOFException("unexpected end of file at " + (readPosition + slice.position() - start));
+            }
+        }
+
+        Cipher cipher = JCipherCache.getInstance(cipherTransformation);
+        int blockSize = cipher.getBlockSize();
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, JCryptoUtils.calculateIVForBlock(iv, plainPosition / blockSize));
+        int skip = (int) (plainPosition % blockSize);
+        if (skip > 0) {
+            byte[] skipped = new byte[skip];
+            cipher.update(skipped, 0, skip, skipped);
+        }
+
+        ByteBuffer input = slice.duplicate();
+        input.flip().position(start);
+        ByteBuffer output = slice.duplicate();
+        output.position(start);
+        // Cipher.update(ByteBuffer, ByteBuffer) 允許輸入與輸出為同一塊記憶體
+        cipher.update(input, output);
+    }
+
+    /**
+     * CTR以外的模式：從範圍所在的segment起點重建Cipher狀態，以固定大小的暫存buffer解密，只把範圍內的明文寫到sink
+     */
+    private void decryptSegments(long plainPosition, long length, WritableByteChannel sink) throws IOException, GeneralSecurityException {
+        if (length == 0) {
+            return;
+        }
+        long end = plainPosition + length;
+        long alignedStart = plainPosition - plainPosition % segmentSize;
+        // 讀到segment的結尾，避免Cipher把不完整的segment留在內部緩衝
+        long readEnd = Math.min(cipherTextLength, (end + segmentSize - 1) / segmentSize * segmentSize);
+        Cipher cipher = initAt(alignedStart);
+
+        int scratchSize = (int) Math.min(SCRATCH_SIZE, readEnd - alignedStart);
+        ByteBuffer in = ByteBuffer.allocate(scratchSize);
+        ByteBuffer out = ByteBuffer.allocate(scratchSize + segmentSize);
+        for (long position = alignedStart; position < readEnd; position += in.limit()) {
+            in.clear().limit((int) Math.min(scratchSize, readEnd - position));
+            readFully(in, position);
+            in.flip();
+            out.clear();
+            if (position + in.limit() == readEnd) {
+                cipher.doFinal(in, out);
+            } else {
+                cipher.update(in, out);
+            }
+            out.flip();
+            out.position((int) Math.max(0, plainPosition - position)).limit((int) Math.min(out.limit(), end - position));
+            writeFully(out, sink);
+        }
+    }
+
+    /**
+     * 取得從密文位置position (segment的起點) 開始解密的Cipher
+     */
+    private Cipher initAt(long position) throws IOException, GeneralSecurityException {
+        Cipher cipher = JCipherCache.getInstance(cipherTransformation);
+        if (iv == null) {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+        } else if (ofb) {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, iv);
+            // keystream與輸入無關，以全0資料快轉
+            byte[] zeros = new byte[(int) Math.min(SCRATCH_SIZE, position)];
+            for (long skipped = 0; skipped < position; skipped += zeros.length) {
+                int n = (int) Math.min(zeros.length, position - skipped);
+                cipher.update(zeros, 0, n, zeros);
+                Arrays.fill(zeros, 0, n, (byte) 0);
+            }
+        } else {
+            // CBC/CFB的暫存器為position之前的ivLength bytes，範圍在檔案開頭時不足的部分來自iv
+            byte[] baseIv = iv.getIV();
+            byte[] register = new byte[baseIv.length];
+            int fromIv = (int) Math.max(0, baseIv.length - position);
+            System.arraycopy(baseIv, baseIv.length - fromIv, register, 0, fromIv);
+            readFully(ByteBuffer.wrap(register, fromIv, register.length - fromIv), position - (register.length - fromIv));
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(register));
+        }
+        return cipher;
+    }
+
+    /**
+     * 解密最後一個block取得padding長度，NoPadding為0
+     */
+    private long readPaddingLength(String padding, int blockSize) throws IOException, GeneralSecurityException {
+        if ("NoPadding".equalsIgnoreCase(padding) || operation.equals("CTR")) {
+            return 0;
+        }
+        if (cipherTextLength < blockSize || cipherTextLength % blockSize != 0) {
+            throw new BadPaddingException("ciphertext length " + cipherTextLength + " is not a positive multiple of " + blockSize);
+        }
+        // 只讀取最後兩個block，需要從檔案開頭快轉的OFB已在open排除
+        long position = cipherTextLength - blockSize;
+        Cipher cipher = initAt(position);
+        ByteBuffer lastBlock = ByteBuffer.allocate(blockSize);
+        readFully(lastBlock, position);
+        lastBlock.flip();
+        ByteBuffer plain = ByteBuffer.allocate(blockSize);
+        cipher.doFinal(lastBlock, plain);
+        // PKCS5與ISO10126都以最後一個byte記錄padding長度
+        int paddingLength = plain.get(blockSize - 1) & 0xff;
+        if (paddingLength < 1 || paddingLength > blockSize) {
+            throw new BadPaddingException("invalid padding, wrong key or iv");
+        }
+        return paddingLength;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, dataOffset + position + buffer.position() - start) < 0) {
+                throw new EOFException("unexpected end of file at " + (dataOffset + position + buffer.position() - start));
+            }
+        }
+    }
+
+    private void checkRange(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > plaintextLength) {
+            throw new IndexOutOfBoundsException(String.format("range [%d, %d) is outside [0, %d)", offset, offset + length, plaintextLength));
+        }
+    }
+
+    /**
+     * 將寫入的資料放進ByteBuffer的WritableByteChannel
+     */
+    private static class SliceChannel implements WritableByteChannel {
+        private final ByteBuffer slice;
+
+        SliceChannel(ByteBuffer slice) {
+            this.slice = slice;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            slice.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel sink) throws IOException {
+        while (buffer.hasRemaining()) {
+            sink.write(buffer);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("range decryption interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
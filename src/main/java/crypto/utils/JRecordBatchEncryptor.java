@@ -0,0 +1,202 @@
+package crypto.utils;
+
+import enums.JRecordIvEnum;
+import model.JCipherTransformation;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 大量小筆資料 (例如資料庫欄位) 的批次加密
+ *
+ * 所有record共用一把key與一個Cipher，每筆只重新init iv (SunJCE在key不變時不會重新展開key schedule)，
+ * 密文依序寫進同一個事先配置好的byte[]，以offset表記錄每筆的位置，迴圈中不會再配置輸出陣列。
+ * 一個instance持有自己的Cipher，不可同時在多個執行緒使用
+ * @property cipherTransformation JCipherTransformation CBC/ECB需要padding才能處理任意長度的record；GCM每筆附加tag
+ * @property secretKey SecretKey
+ * @property ivStrategy JRecordIvEnum
+ * @constructor
+ */
+public class JRecordBatchEncryptor {
+    private final JCipherTransformation cipherTransformation;
+    private final SecretKey secretKey;
+    private final JRecordIvEnum ivStrategy;
+    private final Cipher cipher;
+    private final boolean gcm;
+    private final int ivLength;
+    private final int blockSize;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * 一批加密後的record
+     * @property data ByteArray 所有密文，第i筆在 [offsets[i], offsets[i + 1])
+     * @property offsets IntArray 長度為record數 + 1
+     * @property ivs ByteArray RANDOM: 每筆依序ivLength bytes；DERIVED: batch的iv
+     * @property ivStrategy JRecordIvEnum
+     * @constructor
+     */
+    public static class Batch {
+        public final byte[] data;
+        public final int[] offsets;
+        public final byte[] ivs;
+        public final JRecordIvEnum ivStrategy;
+
+        public Batch(byte[] data, int[] offsets, byte[] ivs, JRecordIvEnum ivStrategy) {
+            this.data = data;
+            this.offsets = offsets;
+            this.ivs = ivs;
+            this.ivStrategy = ivStrategy;
+        }
+
+        public int size() {
+            return offsets.length - 1;
+        }
+
+        /**
+         * 第index筆密文的長度
+         * @param index Int
+         * @return Int
+         */
+        public int getLength(int index) {
+            return offsets[index + 1] - offsets[index];
+        }
+    }
+
+    public JRecordBatchEncryptor(JCipherTransformation cipherTransformation, SecretKey secretKey, JRecordIvEnum ivStrategy) throws GeneralSecurityException {
+        this.cipherTransformation = cipherTransformation;
+        this.secretKey = secretKey;
+        this.ivStrategy = ivStrategy;
+        this.cipher = JProviderSelector.newCipher(cipherTransformation.getText());
+        this.gcm = JGcmSegmentEngine.isSupported(cipherTransformation);
+        this.ivLength = gcm ? JGcmSegmentEngine.NONCE_LENGTH : cipherTransformation.isNeedIv() ? cipherTransformation.ivSizeForBytes : 0;
+        this.blockSize = cipher.getBlockSize();
+    }
+
+    /**
+     * @param records List<ByteArray>
+     * @return Batch
+     */
+    public Batch encrypt(List<byte[]> records) throws GeneralSecurityException {
+        return encrypt(records.toArray(new byte[0][]));
+    }
+
+    /**
+     * 加密所有record到一個連續的byte[]
+     * @param records Array<ByteArray>
+     * @return Batch
+     */
+    public Batch encrypt(byte[][] records) throws GeneralSecurityException {
+        long capacity = 0;
+        for (byte[] record : records) {
+            capacity += getMaxOutputSize(record.length);
+        }
+        if (capacity > Integer.MAX_VALUE - 8 || (long) records.length * ivLength > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("batch is larger than 2 GB, split it into smaller batches");
+        }
+
+        byte[] ivs;
+        if (ivLength == 0) {
+            ivs = new byte[0];
+        } else if (ivStrategy == JRecordIvEnum.RANDOM) {
+            // 一次產生所有iv，避免每筆呼叫SecureRandom
+            ivs = new byte[records.length * ivLength];
+            random.nextBytes(ivs);
+        } else {
+            ivs = new byte[ivLength];
+            random.nextBytes(ivs);
+        }
+
+        byte[] data = new byte[(int) capacity];
+        int[] offsets = new int[records.length + 1];
+        byte[] recordIv = new byte[ivLength];
+        int position = 0;
+        for (int i = 0; i < records.length; i++) {
+            offsets[i] = position;
+            init(Cipher.ENCRYPT_MODE, ivs, i, recordIv);
+            position += cipher.doFinal(records[i], 0, records[i].length, data, position);
+        }
+        offsets[records.length] = position;
+        return new Batch(data, offsets, ivs, ivStrategy);
+    }
+
+    /**
+     * 解密第index筆record到dst
+     * @param batch Batch
+     * @param index Int
+     * @param dst ByteArray 剩餘空間至少需要batch.getLength(index)
+     * @param dstOffset Int
+     * @return Int 明文長度
+     */
+    public int decrypt(Batch batch, int index, byte[] dst, int dstOffset) throws GeneralSecurityException {
+        if (batch.ivStrategy != ivStrategy) {
+            throw new IllegalArgumentException("batch was encrypted with " + batch.ivStrategy);
+        }
+        init(Cipher.DECRYPT_MODE, batch.ivs, index, new byte[ivLength]);
+        return cipher.doFinal(batch.data, batch.offsets[index], batch.getLength(index), dst, dstOffset);
+    }
+
+    /**
+     * @param batch Batch
+     * @param index Int
+     * @return ByteArray 第index筆record的明文
+     */
+    public byte[] decrypt(Batch batch, int index) throws GeneralSecurityException {
+        byte[] plaintext = new byte[batch.getLength(index)];
+        int length = decrypt(batch, index, plaintext, 0);
+        return length == plaintext.length ? plaintext : Arrays.copyOf(plaintext, length);
+    }
+
+    /**
+     * @param batch Batch
+     * @return Array<ByteArray> 所有record的明文
+     */
+    public byte[][] decryptAll(Batch batch) throws GeneralSecurityException {
+        byte[][] records = new byte[batch.size()][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = decrypt(batch, i);
+        }
+        return records;
+    }
+
+    /**
+     * 一筆record加密後最多的大小
+     * @param recordLength Int
+     * @return Int
+     */
+    public int getMaxOutputSize(int recordLength) {
+        if (gcm) {
+            return recordLength + JGcmSegmentEngine.TAG_LENGTH;
+        }
+        return "NoPadding".equalsIgnoreCase(cipherTransformation.padding) ? recordLength : (recordLength / blockSize + 1) * blockSize;
+    }
+
+    /**
+     * 以第index筆record的iv init cipher，recordIv為重複使用的暫存空間
+     */
+    private void init(int mode, byte[] ivs, int index, byte[] recordIv) throws GeneralSecurityException {
+        if (ivLength == 0) {
+            cipher.init(mode, secretKey);
+            return;
+        }
+
+        if (ivStrategy == JRecordIvEnum.RANDOM) {
+            System.arraycopy(ivs, index * ivLength, recordIv, 0, ivLength);
+        } else {
+            // 編號XOR在前半段，CTR的counter遞增發生在後半段，不同record的keystream不會重疊
+            System.arraycopy(ivs, 0, recordIv, 0, ivLength);
+            int derivedLength = ivLength / 2;
+            for (int i = 0; i < derivedLength; i++) {
+                recordIv[i] ^= (byte) ((long) index >>> (8 * (derivedLength - 1 - i)));
+            }
+        }
+        AlgorithmParameterSpec spec = gcm ? new GCMParameterSpec(JGcmSegmentEngine.TAG_LENGTH * 8, recordIv) : new IvParameterSpec(recordIv);
+        cipher.init(mode, secretKey, spec);
+    }
+}
@@ -8,9 +8,11 @@ package enums;
  */
 public enum JFileStatusEnum {
     UNPROCESSED ("未處理"),
+    WAITING     ("等待中"),
     PROCESSING  ("處理中"),
     FINISH      ("完成"),
-    FAILED      ("失敗");
+    FAILED      ("失敗"),
+    CANCELLED   ("已取消");
 
     public String displayText;
 
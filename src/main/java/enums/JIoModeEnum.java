@@ -0,0 +1,19 @@
+package enums;
+
+/**
+ * 檔案加解密時使用的I/O方式
+ * @property displayText String 顯示文字
+ * @constructor
+ */
+public enum JIoModeEnum {
+    STREAM    ("FileInputStream / FileOutputStream"),
+    CHANNEL   ("FileChannel (大檔使用MappedByteBuffer)"),
+    PIPELINED ("讀取 / 加解密 / 寫入 三段pipeline"),
+    ASYNC     ("AsynchronousFileChannel，同時進行多個讀寫");
+
+    public String displayText;
+
+    JIoModeEnum(String displayText){
+        this.displayText = displayText;
+    }
+}
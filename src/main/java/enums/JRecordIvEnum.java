@@ -0,0 +1,17 @@
+package enums;
+
+/**
+ * 批次加密小筆資料時，每筆record的iv產生方式
+ * @property displayText String 顯示文字
+ * @constructor
+ */
+public enum JRecordIvEnum {
+    RANDOM  ("每筆record以SecureRandom產生iv，與密文分開存放"),
+    DERIVED ("batch的iv與record編號XOR產生，只存一個iv，同一把key下batch的iv不可重複");
+
+    public String displayText;
+
+    JRecordIvEnum(String displayText){
+        this.displayText = displayText;
+    }
+}
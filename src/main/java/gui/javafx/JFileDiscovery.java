@@ -0,0 +1,102 @@
+package gui.javafx;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import model.JInputFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * 在背景執行緒走訪目錄，分批將檔案加入表格
+ *
+ * 視窗不需等待走訪結束就能顯示；同時最多只有 [MAX_PENDING_BATCHES] 批在等待JavaFX Application Thread處理，
+ * 走訪速度比畫面更新快時會在這裡等待，避免排隊中的batch佔用大量記憶體
+ * @property root Path 走訪的根目錄
+ * @property filesData ObservableList<JInputFile> 表格的資料
+ * @constructor
+ */
+public class JFileDiscovery {
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    private final Path root;
+    private final ObservableList<JInputFile> filesData;
+    private final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+    private volatile boolean cancelled = false;
+    private Thread thread;
+
+    public JFileDiscovery(Path root, ObservableList<JInputFile> filesData) {
+        this.root = root;
+        this.filesData = filesData;
+    }
+
+    /**
+     * 開始走訪
+     * @param onFinished Runnable 走訪結束後在JavaFX Application Thread呼叫，可為null
+     * @return Unit
+     */
+    public void start(Runnable onFinished) {
+        thread = new Thread(() -> {
+            try {
+                walk();
+            } catch (IOException | UncheckedIOException | InterruptedException e) {
+                if (!cancelled) {
+                    System.out.printf("[ERROR] %s\n", e.getLocalizedMessage());
+                }
+            }
+            if (onFinished != null && !cancelled) {
+                Platform.runLater(onFinished);
+            }
+        }, "file-discovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止走訪，已加入表格的檔案不受影響
+     * @return Unit
+     */
+    public void cancel() {
+        cancelled = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void walk() throws IOException, InterruptedException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            Iterator<Path> paths = stream.filter(Files::isRegularFile).iterator();
+            List<JInputFile> batch = new ArrayList<>(BATCH_SIZE);
+            while (paths.hasNext() && !cancelled) {
+                batch.add(new JInputFile(paths.next().toString()));
+                if (batch.size() == BATCH_SIZE) {
+                    publish(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                publish(batch);
+            }
+        }
+    }
+
+    private void publish(List<JInputFile> batch) throws InterruptedException {
+        pendingBatches.acquire();
+        Platform.runLater(() -> {
+            try {
+                // 一次addAll只觸發一次ListChangeListener
+                filesData.addAll(batch);
+            } finally {
+                pendingBatches.release();
+            }
+        });
+    }
+}
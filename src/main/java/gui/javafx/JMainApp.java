@@ -1,10 +1,14 @@
 package gui.javafx;
 
-import crypto.utils.JCryptoUtils;
+import crypto.utils.JBatchExecutor;
+import crypto.utils.JCryptoSession;
+import crypto.utils.JKeyManifest;
 import enums.JFileStatusEnum;
 import gui.javafx.components.JInputFileTableView;
 import gui.javafx.components.JNavBar;
+import gui.javafx.components.JThroughputLabel;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
@@ -22,30 +26,33 @@ import model.JCipherTransformation;
 import model.JInputFile;
 
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 
 public class JMainApp extends Application{
 
-    private Button encryptButton, decryptButton;
+    private Button encryptButton, decryptButton, cancelButton;
 
-    private String[] algos = new String[]{"AES", "DES"/*, "3DES"*/};
+    private String[] algos = JCipherTransformation.ALGORITHMS;
     private ObservableList<String> algoOptions = FXCollections.observableArrayList(algos);
 
-    private String[] operations = new String[]{"CTR", "ECB" ,"CBC" ,"CFB" ,"CFB8" ,"OFB", "OFB8"};
+    private String[] operations = JCipherTransformation.OPERATIONS;
     private ObservableList<String> operationOptions = FXCollections.observableArrayList(operations);
 
-    private String[] padding = new String[]{"PKCS5Padding", "NoPadding", "ISO10126Padding"};
+    private String[] padding = JCipherTransformation.PADDINGS;
     private ObservableList<String> paddingOptions = FXCollections.observableArrayList(padding);
 
     private ObservableList<String> keySizeForAES = FXCollections.observableArrayList(new String[]{"128", "192", "256"});
     private ObservableList<String> keySizeForDES = FXCollections.observableArrayList(new String[]{"56"});
 
-    private JInputFile selectFile;
+    // 加解密工作在背景執行，避免大檔案卡住UI
+    private final JBatchExecutor batchExecutor = new JBatchExecutor();
+    private JThroughputLabel throughputLabel;
+    private JFileDiscovery fileDiscovery;
     private ObservableList<JInputFile> filesData = FXCollections.observableArrayList(
 
     );
@@ -54,7 +61,8 @@ public class JMainApp extends Application{
 
     @Override
     public void start(Stage primaryStage) throws Exception {
-        try(Stream<Path> stream = Files.walk(Paths.get(
+        // 在背景分批載入，視窗不需等待走訪結束
+        fileDiscovery = new JFileDiscovery(Paths.get(
                 (new File(getClass().getResource("").toURI()))
                         .getParentFile()
                         .getParentFile()
@@ -62,10 +70,7 @@ public class JMainApp extends Application{
                         .getParentFile()
                         .getParentFile()
                         .toString() + "/resources/main/img/"
-        ))){
-            List<String> collect = stream.filter(Files::isRegularFile).map(s -> s.toString()).collect(Collectors.toList());
-            collect.forEach(s -> filesData.add(new JInputFile(s)));
-        }
+        ), filesData);
 
         MenuBar menuBar = new MenuBar();
 
@@ -75,6 +80,7 @@ public class JMainApp extends Application{
         menuBar.getMenus().addAll(fileMenu);
 
         JNavBar navBar = new JNavBar();
+        throughputLabel = new JThroughputLabel();
 
         Label algoTitleLabel = new Label("加密演算法參數 (必填)");
         algoTitleLabel.setStyle("-fx-font-size: 20px");
@@ -111,6 +117,9 @@ public class JMainApp extends Application{
         ivStringTextField.setMaxWidth(200.0);
         ivStringTextField.setPromptText("輸入ivSize的數字以「,」分開");
 
+        // 已壓縮的格式(png、jpg、webp...)會自動略過
+        CheckBox compressCheckBox = new CheckBox("加密前壓縮");
+
         Label hintForSelectFileLabel = new Label("選取檔案後進行處理");
         hintForSelectFileLabel.setStyle("-fx-font-size: 20px");
 
@@ -120,6 +129,10 @@ public class JMainApp extends Application{
         decryptButton = new Button("解密");
         decryptButton.setMinWidth(75.0);
 
+        // 取消選取檔案中排隊或處理中的工作，未完成的輸出檔會被刪除
+        cancelButton = new Button("取消");
+        cancelButton.setMinWidth(75.0);
+
         navBar.getChildren().addAll(
                 algoTitleLabel,
                 new Label("演算法 Algorithm"),
@@ -137,15 +150,16 @@ public class JMainApp extends Application{
                 encodedKeyStringTextField,
                 new Label("初始向量"),
                 ivStringTextField,
+                compressCheckBox,
                 new Label(), // for spacing
 
                 hintForSelectFileLabel,
-                new HBox(encryptButton, new Label("  "), decryptButton)
+                new HBox(encryptButton, new Label("  "), decryptButton, new Label("  "), cancelButton),
+                throughputLabel
         );
 
         JInputFileTableView filesTableView = new JInputFileTableView();
         filesTableView.setItems(filesData);
-        filesTableView.getSelectionModel().select(0);
 
 
 
@@ -207,11 +221,8 @@ public class JMainApp extends Application{
         encryptButton.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                int index = filesTableView.getSelectionModel().getSelectedIndex();
-                selectFile = filesTableView.getItems().get(index);
-                if (Objects.isNull(selectFile)) return;
-                selectFile.setEncryptStatus(JFileStatusEnum.PROCESSING);
-                filesTableView.refresh();
+                List<JInputFile> selectFiles = new ArrayList<>(filesTableView.getSelectionModel().getSelectedItems());
+                if (selectFiles.isEmpty()) return;
 
                 JCipherTransformation cipherTransformation = new JCipherTransformation(
                         algorithmComboBox.getValue(),
@@ -220,18 +231,25 @@ public class JMainApp extends Application{
                         ivSizeForBytes[algorithmComboBox.getSelectionModel().getSelectedIndex()]
                 );
                 String encodedKey = encodedKeyStringTextField.getText();
+                String ivString = ivStringTextField.getText();
                 int keySize = Integer.valueOf(keySizeCombobox.getSelectionModel().getSelectedItem());
+                boolean compress = compressCheckBox.isSelected();
+
+                // 同一批檔案共用一個session，key只解析/產生一次
+                JCryptoSession session = createSession(cipherTransformation, keySize, encodedKey, ivString);
+                if (session == null) {
+                    selectFiles.forEach(selectFile -> selectFile.setEncryptStatus(JFileStatusEnum.FAILED));
+                    return;
+                }
 
                 // TODO: AES，設定keySize = 256, ivSize = 128/8 = 16
-                try {
-                    JCryptoUtils.encrypt(cipherTransformation, keySize, selectFile, encodedKey, ivStringTextField.getText());
-                    selectFile.setEncryptStatus(JFileStatusEnum.FINISH);
-                } catch (Exception e) {
-                    selectFile.setEncryptStatus(JFileStatusEnum.FAILED);
-                    System.out.printf("[ERROR] %s\n", e.getLocalizedMessage());
-                    e.printStackTrace();
-                } finally {
-                    filesTableView.refresh();
+                for (JInputFile selectFile : selectFiles) {
+                    selectFile.setEncryptStatus(JFileStatusEnum.WAITING);
+                    selectFile.newCancellationToken();
+                    batchExecutor.submit(
+                            () -> session.encrypt(selectFile, selectFile.getMetrics(), compress),
+                            new StatusListener(selectFile, selectFile::setEncryptStatus, throughputLabel)
+                    );
                 }
             }
         });
@@ -239,12 +257,8 @@ public class JMainApp extends Application{
         decryptButton.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                int index = filesTableView.getSelectionModel().getSelectedIndex();
-                selectFile = filesTableView.getItems().get(index);
-                if (Objects.isNull(selectFile)) return;
-
-                selectFile.setDecryptStatus(JFileStatusEnum.PROCESSING);
-                filesTableView.refresh();
+                List<JInputFile> selectFiles = new ArrayList<>(filesTableView.getSelectionModel().getSelectedItems());
+                if (selectFiles.isEmpty()) return;
 
                 JCipherTransformation cipherTransformation = new JCipherTransformation(
                         algorithmComboBox.getValue(),
@@ -253,21 +267,35 @@ public class JMainApp extends Application{
                         ivSizeForBytes[algorithmComboBox.getSelectionModel().getSelectedIndex()]
                 );
                 String encodedKey = encodedKeyStringTextField.getText();
+                String ivString = ivStringTextField.getText();
                 int keySize = Integer.valueOf(keySizeCombobox.getSelectionModel().getSelectedItem());
 
+                JCryptoSession session = createSession(cipherTransformation, keySize, encodedKey, ivString);
+                if (session == null) {
+                    selectFiles.forEach(selectFile -> selectFile.setDecryptStatus(JFileStatusEnum.FAILED));
+                    return;
+                }
+
                 // TODO: 目前是先以AES, ivSize = 128/8 = 16
-                try {
-                    JCryptoUtils.decrypt(cipherTransformation, keySize, new JInputFile(String.format("%s/output/%s.enc", new File(selectFile.getCompleteFilename()).getParentFile().getParent(), selectFile.getFilename())), encodedKey, ivStringTextField.getText());
-                    selectFile.setDecryptStatus(JFileStatusEnum.FINISH);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    selectFile.setDecryptStatus(JFileStatusEnum.FAILED);
-                } finally {
-                    filesTableView.refresh();
+                for (JInputFile selectFile : selectFiles) {
+                    selectFile.setDecryptStatus(JFileStatusEnum.WAITING);
+                    selectFile.newCancellationToken();
+                    JInputFile encryptedFile = new JInputFile(String.format("%s/output/%s.enc", new File(selectFile.getCompleteFilename()).getParentFile().getParent(), selectFile.getFilename()));
+                    batchExecutor.submit(
+                            () -> session.decrypt(encryptedFile, selectFile.getMetrics()),
+                            new StatusListener(selectFile, selectFile::setDecryptStatus, throughputLabel)
+                    );
                 }
             }
         });
 
+        cancelButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                filesTableView.getSelectionModel().getSelectedItems().forEach(JInputFile::cancel);
+            }
+        });
+
 //        addButton.setOnAction(new EventHandler<ActionEvent>() {
 //            @Override
 //            public void handle(ActionEvent event) {
@@ -282,9 +310,90 @@ public class JMainApp extends Application{
         primaryStage.setScene(scene);
         primaryStage.setMaximized(true);
         primaryStage.show();
+
+        fileDiscovery.start(() -> {
+            if (filesTableView.getSelectionModel().isEmpty()) {
+                filesTableView.getSelectionModel().select(0);
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        fileDiscovery.cancel();
+        batchExecutor.shutdown();
+        throughputLabel.stop();
+        try {
+            JKeyManifest.closeAll();
+        } catch (IOException e) {
+            System.out.printf("[ERROR] %s\n", e.getLocalizedMessage());
+        }
     }
 
     public void runApp(){
         launch();
     }
+
+    /**
+     * 以畫面上的輸入建立session，key或iv格式錯誤時回傳null
+     * @param cipherTransformation JCipherTransformation
+     * @param keySize Int
+     * @param encodedKey String
+     * @param ivString String
+     * @return JCryptoSession
+     */
+    private static JCryptoSession createSession(JCipherTransformation cipherTransformation, int keySize, String encodedKey, String ivString) {
+        try {
+            return JCryptoSession.create(cipherTransformation, keySize, encodedKey, ivString);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            System.out.printf("[ERROR] %s\n", e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 將背景工作的狀態切回JavaFX Application Thread後更新到JInputFile，並讓throughputLabel開始/停止取樣
+     */
+    private static class StatusListener implements JBatchExecutor.Listener {
+        private final JInputFile file;
+        private final Consumer<JFileStatusEnum> setStatus;
+        private final JThroughputLabel throughputLabel;
+
+        StatusListener(JInputFile file, Consumer<JFileStatusEnum> setStatus, JThroughputLabel throughputLabel) {
+            this.file = file;
+            this.setStatus = setStatus;
+            this.throughputLabel = throughputLabel;
+        }
+
+        @Override
+        public void onStarted() {
+            Platform.runLater(() -> {
+                setStatus.accept(JFileStatusEnum.PROCESSING);
+                throughputLabel.track(file);
+            });
+        }
+
+        @Override
+        public void onFinished() {
+            Platform.runLater(() -> {
+                setStatus.accept(JFileStatusEnum.FINISH);
+                throughputLabel.untrack(file);
+            });
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            boolean cancelled = e instanceof CancellationException;
+            if (cancelled) {
+                System.out.printf("[CANCELLED] %s\n", e.getLocalizedMessage());
+            } else {
+                System.out.printf("[ERROR] %s\n", e.getLocalizedMessage());
+                e.printStackTrace();
+            }
+            Platform.runLater(() -> {
+                setStatus.accept(cancelled ? JFileStatusEnum.CANCELLED : JFileStatusEnum.FAILED);
+                throughputLabel.untrack(file);
+            });
+        }
+    }
 }
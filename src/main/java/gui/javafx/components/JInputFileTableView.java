@@ -2,8 +2,10 @@ package gui.javafx.components;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.cell.ProgressBarTableCell;
 import javafx.scene.control.cell.PropertyValueFactory;
 import model.InputFile;
 import model.JInputFile;
@@ -11,6 +13,7 @@ import model.JInputFile;
 public class JInputFileTableView extends TableView<JInputFile>{
     public JInputFileTableView(){
         setMinWidth(700.0);
+        getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         getColumns().addAll(getTableColumns());
         setStyle("-fx-text-alignment: left;");
     }
@@ -20,14 +23,23 @@ public class JInputFileTableView extends TableView<JInputFile>{
         TableColumn<JInputFile, String> completeFilenameColumn  = new TableColumn<>("檔案路徑");
         TableColumn<JInputFile, String> encryptStatusColumn     = new TableColumn<>("加密狀態");
         TableColumn<JInputFile, String> decryptStatusColumn     = new TableColumn<>("解密狀態");
+        TableColumn<JInputFile, Double> progressColumn          = new TableColumn<>("進度");
+        TableColumn<JInputFile, String> bytesProcessedColumn    = new TableColumn<>("已處理");
+        TableColumn<JInputFile, String> throughputColumn        = new TableColumn<>("速度");
+        TableColumn<JInputFile, String> elapsedColumn           = new TableColumn<>("耗時");
 
         fileNameColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(InputFile.FILE_NAME));
         completeFilenameColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(InputFile.COMPLETE_FILE_NAME));
         encryptStatusColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(InputFile.ENCRYPT_STATUS));
         decryptStatusColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(InputFile.DECRYPT_STATUS));
+        progressColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, Double>(JInputFile.PROGRESS));
+        progressColumn.setCellFactory(ProgressBarTableCell.forTableColumn());
+        bytesProcessedColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(JInputFile.BYTES_PROCESSED));
+        throughputColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(JInputFile.THROUGHPUT));
+        elapsedColumn.setCellValueFactory(new PropertyValueFactory<JInputFile, String>(JInputFile.ELAPSED));
 
         ObservableList<TableColumn<JInputFile, ?>> tableColumns = FXCollections.observableArrayList();
-        tableColumns.addAll(fileNameColumn, completeFilenameColumn, encryptStatusColumn, decryptStatusColumn);
+        tableColumns.addAll(fileNameColumn, completeFilenameColumn, encryptStatusColumn, decryptStatusColumn, progressColumn, bytesProcessedColumn, throughputColumn, elapsedColumn);
 
         return tableColumns;
     }
@@ -0,0 +1,70 @@
+package gui.javafx.components;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.scene.control.Label;
+import javafx.util.Duration;
+import model.JInputFile;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 顯示所有處理中檔案的總速度，並定時將各檔案的metrics取樣到表格
+ */
+public class JThroughputLabel extends Label {
+    private static final Duration SAMPLE_INTERVAL = Duration.millis(500);
+
+    private final Set<JInputFile> activeFiles = new HashSet<>();
+    private final Timeline timeline;
+    private long finishedBytes = 0;
+    private long lastBytes = 0;
+    private long lastNanos = System.nanoTime();
+
+    public JThroughputLabel() {
+        super("總速度: -");
+        timeline = new Timeline(new KeyFrame(SAMPLE_INTERVAL, event -> sample()));
+        timeline.setCycleCount(Animation.INDEFINITE);
+        timeline.play();
+    }
+
+    /**
+     * 開始取樣檔案的metrics，必須在JavaFX Application Thread呼叫
+     * @param file JInputFile
+     * @return Unit
+     */
+    public void track(JInputFile file) {
+        activeFiles.add(file);
+    }
+
+    /**
+     * 檔案處理結束，更新最後一次數值後停止取樣，必須在JavaFX Application Thread呼叫
+     * @param file JInputFile
+     * @return Unit
+     */
+    public void untrack(JInputFile file) {
+        if (activeFiles.remove(file)) {
+            file.refreshMetrics();
+            finishedBytes += file.getMetrics().getBytesProcessed();
+        }
+    }
+
+    public void stop() {
+        timeline.stop();
+    }
+
+    private void sample() {
+        long totalBytes = finishedBytes;
+        for (JInputFile file : activeFiles) {
+            file.refreshMetrics();
+            totalBytes += file.getMetrics().getBytesProcessed();
+        }
+
+        long now = System.nanoTime();
+        double throughput = (totalBytes - lastBytes) / (1024.0 * 1024.0) / ((now - lastNanos) / 1e9);
+        setText(String.format("總速度: %.1f MB/s (處理中: %d 個檔案)", Math.max(0, throughput), activeFiles.size()));
+        lastBytes = totalBytes;
+        lastNanos = now;
+    }
+}
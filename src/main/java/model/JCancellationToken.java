@@ -0,0 +1,34 @@
+package model;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * 取消加解密工作的旗標，由 [JTransferMetrics.addBytes] 在每個buffer/chunk之間檢查
+ *
+ * 同一個token可以給多個檔案使用，取消後不能恢復，重新執行時需建立新的token
+ */
+public class JCancellationToken {
+    private volatile boolean cancelled = false;
+
+    /**
+     * 要求取消，正在處理的檔案會在下一個chunk前停止，可在任何執行緒呼叫
+     * @return Unit
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 已取消時拋出CancellationException
+     * @return Unit
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("cancelled");
+        }
+    }
+}
@@ -5,27 +5,43 @@ package model;
  * @property algorithm String 演算法
  * @property operation String 工作模式
  * @property padding String 分組密碼的填充方式
+ * @property text String "演算法/模式/填充方式"，建構時計算一次
  * @constructor
  */
 public class JCipherTransformation {
-    public String algorithm;
-    public String operation;
-    public String padding;
+    // 畫面與provider量測共用的選項
+    public static final String[] ALGORITHMS = new String[]{"AES", "DES"/*, "3DES"*/};
+    // GCM: 分段AES-GCM，提供完整性驗證，只支援AES
+    public static final String[] OPERATIONS = new String[]{"CTR", "ECB", "CBC", "CFB", "CFB8", "OFB", "OFB8", "GCM"};
+    public static final String[] PADDINGS = new String[]{"PKCS5Padding", "NoPadding", "ISO10126Padding"};
+
+    public final String algorithm;
+    public final String operation;
+    public final String padding;
     public final int ivSizeForBytes;
+    private final String text;
 
     public JCipherTransformation(String algorithm, String operation, String padding, int ivSizeForBytes){
         this.algorithm = algorithm;
         this.operation = operation;
         this.padding = padding;
         this.ivSizeForBytes = ivSizeForBytes;
+        this.text = String.format("%s/%s/%s", algorithm, operation, padding);
     }
 
+    /**
+     * 字串格式，"演算法/模式/填充方式", ex: "AES/CTR/NoPadding"
+     * @return String
+     */
     public String getText(){
-        System.out.println(String.format("%s/%s/%s", algorithm, operation, padding));
-        return String.format("%s/%s/%s", algorithm, operation, padding);
+        return text;
     }
 
+    /**
+     * 判斷是否需要初始向量(iv)
+     * @return Boolean
+     */
     public boolean isNeedIv(){
-        return operation != "ECB";
+        return !"ECB".equals(operation);
     }
 }
@@ -0,0 +1,196 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 加密檔(.enc)開頭的檔頭，記錄解密所需的參數，解密時不需要再輸入演算法、模式、填充方式與iv
+ *
+ * 格式 (big-endian):
+ * magic(8) | version(2) | algorithm(UTF) | operation(UTF) | padding(UTF) | ivSizeForBytes(2)
+ * | ivLength(2) | iv | flags(4) | chunkSize(4) | plaintextLength(8) | chunkCount(4) | chunkOffsets(8 * chunkCount)
+ *
+ * chunkOffsets為每個chunk的密文相對於資料起點(檔頭之後)的位置，目前只有分段GCM用來確認segment數，
+ * 解密時各chunk的位置都由chunkSize計算。
+ * 讀取時檢查所有長度欄位，損壞或惡意的檔頭只會拋出IOException，不會依檔頭配置大量記憶體
+ * @property cipherTransformation JCipherTransformation
+ * @property iv ByteArray
+ * @property flags Int
+ * @property chunkSize Int 每個chunk的明文大小
+ * @property plaintextLength Long
+ * @property chunkOffsets LongArray
+ * @constructor
+ */
+public class JContainerHeader {
+    public static final short VERSION = 1;
+    // 資料為分段AES-GCM，每個chunk後面接著自己的tag
+    public static final int FLAG_SEGMENTED_AEAD = 1;
+    // 明文加密前先以Deflate壓縮，密文為單一串流，沒有chunkOffsets；plaintextLength為壓縮前的大小
+    public static final int FLAG_DEFLATE = 2;
+    private static final byte[] MAGIC = new byte[]{'A', 'E', 'S', '2', 'E', 'N', 'C', 0};
+    // 目前的模式最多使用16 bytes的iv，保留空間給其他演算法
+    private static final int MAX_IV_LENGTH = 64;
+
+    public final JCipherTransformation cipherTransformation;
+    public final byte[] iv;
+    public final int flags;
+    public final int chunkSize;
+    public final long plaintextLength;
+    public final long[] chunkOffsets;
+
+    public JContainerHeader(JCipherTransformation cipherTransformation, byte[] iv, int flags, int chunkSize, long plaintextLength, long[] chunkOffsets) {
+        this.cipherTransformation = cipherTransformation;
+        this.iv = iv;
+        this.flags = flags;
+        this.chunkSize = chunkSize;
+        this.plaintextLength = plaintextLength;
+        this.chunkOffsets = chunkOffsets;
+    }
+
+    /**
+     * 明文與密文chunk大小相同時使用 (CTR等串流模式，以及只有最後一個block有padding的模式)
+     * @param cipherTransformation JCipherTransformation
+     * @param iv ByteArray
+     * @param chunkSize Int
+     * @param plaintextLength Long
+     * @return JContainerHeader
+     */
+    public static JContainerHeader forPlaintext(JCipherTransformation cipherTransformation, byte[] iv, int chunkSize, long plaintextLength) {
+        int chunkCount = (int) ((plaintextLength + chunkSize - 1) / chunkSize);
+        long[] chunkOffsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i] = (long) i * chunkSize;
+        }
+        return new JContainerHeader(cipherTransformation, iv, 0, chunkSize, plaintextLength, chunkOffsets);
+    }
+
+    /**
+     * 壓縮後的明文長度無法事先得知，只能循序處理，因此不記錄chunk
+     * @param cipherTransformation JCipherTransformation
+     * @param iv ByteArray
+     * @param chunkSize Int 循序處理時每次送進cipher的資料量
+     * @param plaintextLength Long 壓縮前的大小
+     * @return JContainerHeader
+     */
+    public static JContainerHeader forDeflated(JCipherTransformation cipherTransformation, byte[] iv, int chunkSize, long plaintextLength) {
+        return new JContainerHeader(cipherTransformation, iv, FLAG_DEFLATE, chunkSize, plaintextLength, new long[0]);
+    }
+
+    /**
+     * 判斷是否設定了flag
+     * @param flag Int
+     * @return Boolean
+     */
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * 序列化後的檔頭，長度即為資料起點
+     * @return ByteArray
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + chunkOffsets.length * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(cipherTransformation.algorithm);
+        out.writeUTF(cipherTransformation.operation);
+        out.writeUTF(cipherTransformation.padding);
+        out.writeShort(cipherTransformation.ivSizeForBytes);
+        out.writeShort(iv.length);
+        out.write(iv);
+        out.writeInt(flags);
+        out.writeInt(chunkSize);
+        out.writeLong(plaintextLength);
+        out.writeInt(chunkOffsets.length);
+        for (long chunkOffset : chunkOffsets) {
+            out.writeLong(chunkOffset);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 從channel開頭讀取檔頭
+     * @param channel FileChannel
+     * @return JContainerHeader
+     */
+    public static JContainerHeader read(FileChannel channel) throws IOException {
+        channel.position(0);
+        // 不關閉stream，channel由呼叫者管理
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not an encrypted container");
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported container version " + version);
+        }
+
+        String algorithm = in.readUTF();
+        String operation = in.readUTF();
+        String padding = in.readUTF();
+        int ivSizeForBytes = in.readShort();
+        int ivLength = in.readShort();
+        if (ivLength < 0 || ivLength > MAX_IV_LENGTH) {
+            throw new IOException("corrupt container header: iv length " + ivLength);
+        }
+        byte[] iv = new byte[ivLength];
+        in.readFully(iv);
+        int flags = in.readInt();
+        int chunkSize = in.readInt();
+        long plaintextLength = in.readLong();
+        int chunkCount = in.readInt();
+        if (chunkSize <= 0 || plaintextLength < 0) {
+            throw new IOException("corrupt container header: chunk size " + chunkSize + ", plaintext length " + plaintextLength);
+        }
+        // 分段GCM的空檔案也有一個segment
+        long maxChunkCount = Math.max(1, plaintextLength / chunkSize + (plaintextLength % chunkSize == 0 ? 0 : 1));
+        if (chunkCount < 0 || chunkCount > maxChunkCount || chunkCount * 8L > channel.size()) {
+            throw new IOException("corrupt container header: " + chunkCount + " chunks");
+        }
+        long[] chunkOffsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i] = in.readLong();
+            if (i > 0 && chunkOffsets[i] <= chunkOffsets[i - 1]) {
+                throw new IOException("corrupt chunk offset table");
+            }
+        }
+
+        return new JContainerHeader(new JCipherTransformation(algorithm, operation, padding, ivSizeForBytes), iv, flags, chunkSize, plaintextLength, chunkOffsets);
+    }
+
+    /**
+     * 判斷channel開頭是否為檔頭
+     * @param channel FileChannel
+     * @return Boolean
+     */
+    public static boolean isContainer(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, magic.position()) < 0) {
+                return false;
+            }
+        }
+        return Arrays.equals(magic.array(), MAGIC);
+    }
+
+    /**
+     * 檔頭長度，也就是密文在檔案中的起點
+     * @return Long
+     */
+    public long getDataOffset() throws IOException {
+        return toBytes().length;
+    }
+}
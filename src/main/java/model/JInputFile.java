@@ -1,6 +1,7 @@
 package model;
 
 import enums.JFileStatusEnum;
+import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleStringProperty;
 import org.jetbrains.annotations.NotNull;
 
@@ -8,18 +9,38 @@ import java.io.File;
 
 /**
  * 專案自訂File，存放加解密狀態
+ *
+ * 大量檔案時大多數的row不會顯示在畫面上，因此property只在第一次呼叫 xxxProperty() (表格顯示該row時) 才建立，
+ * metrics也只在排入加解密工作時才建立，之前狀態只以字串保存
  * @property filename SimpleStringProperty 檔案名稱
  * @property completeFilename SimpleStringProperty 完整檔案名稱(包含路徑)
  * @property encryptStatus SimpleStringProperty 加密狀態
  * @property decryptStatus SimpleStringProperty 解密狀態
+ * @property bytesProcessed SimpleStringProperty 已處理的資料量
+ * @property throughput SimpleStringProperty 平均速度 (MB/s)
+ * @property elapsed SimpleStringProperty 經過時間
+ * @property progress SimpleDoubleProperty 完成比例 0.0 ~ 1.0
+ * @property metrics JTransferMetrics 加解密迴圈記錄的原始數值，由 [refreshMetrics] 取樣到上面的property
+ * @property cancellationToken JCancellationToken 目前排入的工作，由 [cancel] 取消
  */
 public class JInputFile extends File{
     private SimpleStringProperty filename, completeFilename, encryptStatus, decryptStatus;
+    private SimpleStringProperty bytesProcessed, throughput, elapsed;
+    private SimpleDoubleProperty progress;
+    private volatile JTransferMetrics metrics;
+    private volatile JCancellationToken cancellationToken;
+
+    // property建立前的狀態
+    private String encryptStatusText, decryptStatusText;
 
     public static final String FILE_NAME = "filename";
     public static final String COMPLETE_FILE_NAME = "completeFilename";
     public static final String ENCRYPT_STATUS = "encryptStatus";
     public static final String DECRYPT_STATUS = "decryptStatus";
+    public static final String BYTES_PROCESSED = "bytesProcessed";
+    public static final String THROUGHPUT = "throughput";
+    public static final String ELAPSED = "elapsed";
+    public static final String PROGRESS = "progress";
 
     public JInputFile(@NotNull String completeFilename) {
         this(completeFilename, JFileStatusEnum.UNPROCESSED, JFileStatusEnum.UNPROCESSED);
@@ -27,41 +48,169 @@ public class JInputFile extends File{
 
     public JInputFile(@NotNull String completeFilename, JFileStatusEnum encryptStatus, JFileStatusEnum decryptStatus){
         super(completeFilename);
-        this.filename = new SimpleStringProperty(getName());
-        this.completeFilename = new SimpleStringProperty(completeFilename);
-        this.encryptStatus = new SimpleStringProperty(encryptStatus.displayText);
-        this.decryptStatus = new SimpleStringProperty(decryptStatus.displayText);
+        this.encryptStatusText = encryptStatus.displayText;
+        this.decryptStatusText = decryptStatus.displayText;
     }
 
     public String getFilename(){
-        return filename.get();
+        return filename == null ? getName() : filename.get();
     }
 
     public void setFilename(String filename) {
-        this.filename.setValue(filename);
+        filenameProperty().setValue(filename);
+    }
+
+    public SimpleStringProperty filenameProperty() {
+        if (filename == null) {
+            filename = new SimpleStringProperty(getName());
+        }
+        return filename;
     }
 
     public String getCompleteFilename(){
-        return completeFilename.get();
+        return completeFilename == null ? getPath() : completeFilename.get();
     }
 
     public void setCompleteFilename(String completeFilename) {
-        this.completeFilename.setValue(completeFilename);
+        completeFilenameProperty().setValue(completeFilename);
+    }
+
+    public SimpleStringProperty completeFilenameProperty() {
+        if (completeFilename == null) {
+            completeFilename = new SimpleStringProperty(getPath());
+        }
+        return completeFilename;
     }
 
     public String  getEncryptStatus(){
-        return encryptStatus.get();
+        return encryptStatus == null ? encryptStatusText : encryptStatus.get();
+    }
+
+    public SimpleStringProperty encryptStatusProperty() {
+        if (encryptStatus == null) {
+            encryptStatus = new SimpleStringProperty(encryptStatusText);
+        }
+        return encryptStatus;
     }
 
     public void setEncryptStatus(JFileStatusEnum encryptStatus) {
-        this.encryptStatus.setValue(encryptStatus.displayText);
+        if (this.encryptStatus == null) {
+            encryptStatusText = encryptStatus.displayText;
+        } else {
+            this.encryptStatus.setValue(encryptStatus.displayText);
+        }
     }
 
     public String  getDecryptStatus(){
-        return decryptStatus.get();
+        return decryptStatus == null ? decryptStatusText : decryptStatus.get();
+    }
+
+    public SimpleStringProperty decryptStatusProperty() {
+        if (decryptStatus == null) {
+            decryptStatus = new SimpleStringProperty(decryptStatusText);
+        }
+        return decryptStatus;
     }
 
     public void setDecryptStatus(JFileStatusEnum decryptStatus) {
-        this.decryptStatus.setValue(decryptStatus.displayText);
+        if (this.decryptStatus == null) {
+            decryptStatusText = decryptStatus.displayText;
+        } else {
+            this.decryptStatus.setValue(decryptStatus.displayText);
+        }
+    }
+
+    public String getBytesProcessed() {
+        return bytesProcessed == null ? "" : bytesProcessed.get();
+    }
+
+    public SimpleStringProperty bytesProcessedProperty() {
+        if (bytesProcessed == null) {
+            bytesProcessed = new SimpleStringProperty("");
+        }
+        return bytesProcessed;
+    }
+
+    public String getThroughput() {
+        return throughput == null ? "" : throughput.get();
+    }
+
+    public SimpleStringProperty throughputProperty() {
+        if (throughput == null) {
+            throughput = new SimpleStringProperty("");
+        }
+        return throughput;
+    }
+
+    public String getElapsed() {
+        return elapsed == null ? "" : elapsed.get();
+    }
+
+    public SimpleStringProperty elapsedProperty() {
+        if (elapsed == null) {
+            elapsed = new SimpleStringProperty("");
+        }
+        return elapsed;
+    }
+
+    public double getProgress() {
+        return progress == null ? 0.0 : progress.get();
+    }
+
+    public SimpleDoubleProperty progressProperty() {
+        if (progress == null) {
+            progress = new SimpleDoubleProperty(0.0);
+        }
+        return progress;
+    }
+
+    /**
+     * 第一次排入工作時建立，可在任何執行緒呼叫
+     * @return JTransferMetrics
+     */
+    public JTransferMetrics getMetrics() {
+        JTransferMetrics result = metrics;
+        if (result == null) {
+            synchronized (this) {
+                if (metrics == null) {
+                    metrics = new JTransferMetrics();
+                }
+                result = metrics;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 排入新的工作時呼叫，建立新的token並設定到metrics，先前取消的狀態不影響新的工作
+     * @return JCancellationToken
+     */
+    public JCancellationToken newCancellationToken() {
+        JCancellationToken token = new JCancellationToken();
+        getMetrics().setCancellationToken(token);
+        cancellationToken = token;
+        return token;
+    }
+
+    /**
+     * 取消排隊中或處理中的工作，可在任何執行緒呼叫
+     * @return Unit
+     */
+    public void cancel() {
+        JCancellationToken token = cancellationToken;
+        if (token != null) token.cancel();
+    }
+
+    /**
+     * 將metrics目前的數值更新到property，必須在JavaFX Application Thread呼叫
+     * @return Unit
+     */
+    public void refreshMetrics() {
+        JTransferMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.isStarted()) return;
+        bytesProcessedProperty().setValue(String.format("%.1f MB", metrics.getBytesProcessed() / (1024.0 * 1024.0)));
+        throughputProperty().setValue(String.format("%.1f MB/s", metrics.getThroughputMBps()));
+        elapsedProperty().setValue(String.format("%.1f s", metrics.getElapsedNanos() / 1e9));
+        progressProperty().set(metrics.getProgress());
     }
 }
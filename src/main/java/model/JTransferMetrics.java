@@ -0,0 +1,149 @@
+package model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 單一檔案加解密的進度與速度，由加解密迴圈每處理一個buffer/chunk記錄一次，
+ * 畫面再定時取樣，記錄本身只是一次LongAdder.add，不會拖慢加解密
+ *
+ * 多個worker可以同時呼叫 [addBytes]。設定 [ProgressListener] 時每處理intervalBytes通知一次；
+ * 設定 [JCancellationToken] 時 [addBytes] 會在取消後拋出CancellationException，讓所有I/O模式都在chunk之間停止
+ */
+public class JTransferMetrics {
+    private final LongAdder bytesProcessed = new LongAdder();
+    private volatile long totalBytes = 0;
+    private volatile long startNanos = 0;
+    private volatile long endNanos = 0;
+    private volatile JCancellationToken cancellationToken;
+    private volatile ProgressListener progressListener;
+    private volatile long progressInterval = Long.MAX_VALUE;
+    private final AtomicLong nextProgress = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * 進度通知，在加解密的執行緒上呼叫，不可長時間阻塞
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesProcessed, long totalBytes);
+    }
+
+    /**
+     * @param listener ProgressListener 可為null
+     * @param intervalBytes Long 每處理多少bytes通知一次，實際間隔會對齊到chunk的邊界
+     * @return Unit
+     */
+    public void setProgressListener(ProgressListener listener, long intervalBytes) {
+        if (intervalBytes <= 0) {
+            throw new IllegalArgumentException("intervalBytes must be positive");
+        }
+        this.progressInterval = intervalBytes;
+        this.progressListener = listener;
+        nextProgress.set(getBytesProcessed() + intervalBytes);
+    }
+
+    /**
+     * @param cancellationToken JCancellationToken 可為null
+     * @return Unit
+     */
+    public void setCancellationToken(JCancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public boolean isCancelled() {
+        JCancellationToken token = cancellationToken;
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * 開始新的工作，先前的數值歸零；工作在排隊期間已被取消時拋出CancellationException
+     * @param totalBytes Long 要處理的總大小
+     * @return Unit
+     */
+    public void start(long totalBytes) {
+        JCancellationToken token = cancellationToken;
+        if (token != null) token.throwIfCancelled();
+        bytesProcessed.reset();
+        nextProgress.set(progressInterval);
+        this.totalBytes = totalBytes;
+        this.endNanos = 0;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 記錄已處理的資料量，已取消時拋出CancellationException
+     * @param bytes Long
+     * @return Unit
+     */
+    public void addBytes(long bytes) {
+        bytesProcessed.add(bytes);
+        JCancellationToken token = cancellationToken;
+        if (token != null) token.throwIfCancelled();
+
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            long next = nextProgress.get();
+            long processed;
+            // 只有讓nextProgress前進的worker通知，同一個間隔不會重複通知
+            if (next != Long.MAX_VALUE && (processed = bytesProcessed.sum()) >= next
+                    && nextProgress.compareAndSet(next, processed - processed % progressInterval + progressInterval)) {
+                listener.onProgress(processed, totalBytes);
+            }
+        }
+    }
+
+    /**
+     * 工作結束(成功或失敗)，有listener時通知最後的數值
+     * @return Unit
+     */
+    public void finish() {
+        endNanos = System.nanoTime();
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.onProgress(getBytesProcessed(), totalBytes);
+        }
+    }
+
+    public boolean isStarted() {
+        return startNanos != 0;
+    }
+
+    public boolean isFinished() {
+        return endNanos != 0;
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed.sum();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 已經過的時間，結束後固定為總耗時
+     * @return Long 奈秒
+     */
+    public long getElapsedNanos() {
+        if (!isStarted()) return 0;
+        return (isFinished() ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * 平均速度
+     * @return Double MB/s
+     */
+    public double getThroughputMBps() {
+        long elapsedNanos = getElapsedNanos();
+        if (elapsedNanos == 0) return 0;
+        return getBytesProcessed() / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * 完成比例
+     * @return Double 0.0 ~ 1.0
+     */
+    public double getProgress() {
+        if (totalBytes == 0) return isFinished() ? 1.0 : 0.0;
+        return Math.min(1.0, (double) getBytesProcessed() / totalBytes);
+    }
+}
@@ -1,7 +1,13 @@
+import cli.JCryptoCli
 import crypto.utils.JCryptoUtils
 import gui.javafx.JMainApp
 
-fun main() {
+fun main(args: Array<String>) {
+    // 有參數時以命令列模式執行，不會載入JavaFX
+    if (args.isNotEmpty()) {
+        JCryptoCli.main(args)
+        return
+    }
     JMainApp().runApp()
     //new JMainApp().runApp();
     //JCryptoUtils.test()
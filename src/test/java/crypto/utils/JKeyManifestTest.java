@@ -0,0 +1,202 @@
+package crypto.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * [JKeyManifest] 的讀寫，以及中斷或損壞後的復原
+ */
+public class JKeyManifestTest {
+    // magic(8) | version(2)
+    private static final int HEADER_SIZE = 10;
+
+    private Path directory;
+    private File manifestFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("keys");
+        manifestFile = directory.resolve(JKeyManifest.DEFAULT_FILE_NAME).toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        JKeyManifest.closeAll();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void keysAndEntriesAreReadBack() throws Exception {
+        SecretKey key = key(1);
+        File encryptedFile = new File(directory.toFile(), "a.txt.enc");
+        JKeyManifest manifest = JKeyManifest.open(manifestFile);
+        long keyId = manifest.addKey(key);
+        manifest.addEntry(encryptedFile, keyId, new byte[]{1, 2, 3});
+        manifest.close();
+
+        manifest = JKeyManifest.openFor(encryptedFile);
+        assertNotNull(manifest);
+        JKeyManifest.Entry entry = manifest.getEntry(encryptedFile);
+        assertNotNull(entry);
+        assertEquals(keyId, entry.keyId);
+        assertArrayEquals(new byte[]{1, 2, 3}, entry.iv);
+        assertArrayEquals(key.getEncoded(), manifest.getKey(keyId).getEncoded());
+    }
+
+    @Test
+    public void entriesSurviveMovingTheDirectory() throws Exception {
+        File subDirectory = new File(directory.toFile(), "sub");
+        File movedDirectory = new File(directory.toFile(), "moved");
+        File manifestInSub = new File(subDirectory, JKeyManifest.DEFAULT_FILE_NAME);
+        JKeyManifest manifest = JKeyManifest.open(manifestInSub);
+        long keyId = manifest.addKey(key(1));
+        manifest.addEntry(new File(subDirectory, "a.txt.enc"), keyId, new byte[]{9});
+        manifest.close();
+
+        Files.move(subDirectory.toPath(), movedDirectory.toPath());
+        manifest = JKeyManifest.openFor(new File(movedDirectory, "a.txt.enc"));
+        assertNotNull(manifest);
+        JKeyManifest.Entry entry = manifest.getEntry(new File(movedDirectory, "a.txt.enc"));
+        assertNotNull("entry paths are relative to the manifest directory", entry);
+        assertEquals(keyId, entry.keyId);
+    }
+
+    @Test
+    public void tornTailIsTruncatedAndBackedUp() throws Exception {
+        JKeyManifest manifest = JKeyManifest.open(manifestFile);
+        long keyId = manifest.addKey(key(1));
+        manifest.addEntry(new File(directory.toFile(), "a.txt.enc"), keyId, new byte[16]);
+        manifest.close();
+        long validSize = manifestFile.length();
+
+        // 寫到一半中斷: 長度欄位宣稱的payload超過檔尾
+        try (RandomAccessFile file = new RandomAccessFile(manifestFile, "rw")) {
+            file.seek(validSize);
+            file.write(new byte[]{2, 0, 0, 0, 100, 1, 2, 3});
+        }
+
+        manifest = JKeyManifest.open(manifestFile);
+        assertNotNull(manifest.getKey(keyId));
+        assertNotNull(manifest.getEntry(new File(directory.toFile(), "a.txt.enc")));
+        assertEquals(validSize, manifestFile.length());
+        assertEquals(1, countBackups());
+
+        // 截斷後可以繼續附加
+        manifest.addEntry(new File(directory.toFile(), "b.txt.enc"), keyId, new byte[16]);
+        manifest.close();
+        manifest = JKeyManifest.open(manifestFile);
+        assertNotNull(manifest.getEntry(new File(directory.toFile(), "b.txt.enc")));
+    }
+
+    @Test
+    public void corruptedRecordInTheMiddleIsSkipped() throws Exception {
+        JKeyManifest manifest = JKeyManifest.open(manifestFile);
+        long firstKeyId = manifest.addKey(key(1));
+        manifest.addEntry(new File(directory.toFile(), "a.txt.enc"), firstKeyId, new byte[16]);
+        long secondKeyId = manifest.addKey(key(2));
+        manifest.addEntry(new File(directory.toFile(), "b.txt.enc"), secondKeyId, new byte[16]);
+        manifest.close();
+        long size = manifestFile.length();
+
+        // 第二筆record (a.txt.enc的ENTRY) 的payload損壞，crc不符
+        corruptPayload(recordOffsets().get(1));
+
+        manifest = JKeyManifest.open(manifestFile);
+        assertNull(manifest.getEntry(new File(directory.toFile(), "a.txt.enc")));
+        assertNotNull(manifest.getKey(firstKeyId));
+        assertNotNull(manifest.getKey(secondKeyId));
+        assertNotNull(manifest.getEntry(new File(directory.toFile(), "b.txt.enc")));
+        assertEquals("a skipped record must not truncate the file", size, manifestFile.length());
+        assertEquals(2, manifest.getKeys().size());
+    }
+
+    @Test
+    public void secondCorruptionIsRejectedWithoutModifyingTheFile() throws Exception {
+        JKeyManifest manifest = JKeyManifest.open(manifestFile);
+        long keyId = manifest.addKey(key(1));
+        for (int i = 0; i < 4; i++) {
+            manifest.addEntry(new File(directory.toFile(), i + ".enc"), keyId, new byte[16]);
+        }
+        manifest.close();
+        List<Long> offsets = recordOffsets();
+        corruptPayload(offsets.get(1));
+        corruptPayload(offsets.get(3));
+        byte[] before = Files.readAllBytes(manifestFile.toPath());
+
+        try {
+            JKeyManifest.open(manifestFile);
+            fail("two corrupted records were accepted");
+        } catch (IOException expected) {
+            // record的邊界已不可信
+        }
+        assertArrayEquals(before, Files.readAllBytes(manifestFile.toPath()));
+        assertEquals(0, countBackups());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileThatIsNotAManifest() throws IOException {
+        Files.write(manifestFile.toPath(), "not a key manifest".getBytes("UTF-8"));
+        JKeyManifest.open(manifestFile);
+    }
+
+    private static SecretKey key(int seed) throws NoSuchAlgorithmException {
+        byte[] key = new byte[16];
+        key[0] = (byte) seed;
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * 依 type(1) | length(4) | payload | crc32(4) 找出每筆record的起點
+     */
+    private List<Long> recordOffsets() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(manifestFile.toPath()));
+        List<Long> offsets = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while (position < bytes.limit()) {
+            offsets.add((long) position);
+            position += 1 + 4 + bytes.getInt(position + 1) + 4;
+        }
+        return offsets;
+    }
+
+    private void corruptPayload(long recordOffset) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(manifestFile, "rw")) {
+            // keyId的第一個byte
+            long position = recordOffset + 1 + 4;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+    }
+
+    private long countBackups() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(JKeyManifest.DEFAULT_FILE_NAME + ".bak-")).count();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package crypto.utils;
+
+import model.JCipherTransformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * [JRangeDecryptor] 解密的每一段都必須與完整解密結果的同一段相同
+ */
+public class JRangeDecryptorTest {
+    private static final int SMALL_SIZE = 100_003;
+
+    private Path directory;
+    private SecretKey secretKey;
+    private byte[] iv;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("range");
+        Random random = new Random(24);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        secretKey = new SecretKeySpec(key, "AES");
+        iv = new byte[16];
+        random.nextBytes(iv);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void containerRangesMatchFullDecryption() throws Exception {
+        String[][] transformations = {
+                {"CTR", "NoPadding"},
+                {"ECB", "PKCS5Padding"},
+                {"CBC", "PKCS5Padding"},
+                {"CBC", "ISO10126Padding"},
+                {"CFB", "NoPadding"},
+                {"CFB8", "NoPadding"},
+                {"OFB", "PKCS5Padding"},
+                {"OFB8", "NoPadding"},
+        };
+        for (String[] transformation : transformations) {
+            assertRangesMatch(new JCipherTransformation("AES", transformation[0], transformation[1], 16), SMALL_SIZE, true);
+        }
+    }
+
+    @Test
+    public void headerlessRangesMatchFullDecryption() throws Exception {
+        assertRangesMatch(new JCipherTransformation("AES", "CBC", "PKCS5Padding", 16), SMALL_SIZE, false);
+        assertRangesMatch(new JCipherTransformation("AES", "CFB8", "NoPadding", 16), SMALL_SIZE, false);
+    }
+
+    @Test
+    public void parallelRangesMatchFullDecryption() throws Exception {
+        // 超過PARALLEL_THRESHOLD時分成多個chunk平行解密
+        int size = (int) JRangeDecryptor.PARALLEL_THRESHOLD + JRangeDecryptor.CHUNK_SIZE / 2 + 5;
+        assertRangesMatch(new JCipherTransformation("AES", "CTR", "NoPadding", 16), size, true);
+        assertRangesMatch(new JCipherTransformation("AES", "CBC", "PKCS5Padding", 16), size, true);
+    }
+
+    @Test
+    public void rejectsRangeOutsideThePlaintext() throws Exception {
+        JCipherTransformation cipherTransformation = new JCipherTransformation("AES", "CTR", "NoPadding", 16);
+        File encryptedFile = encrypt(cipherTransformation, plaintext(100), true);
+        try (JRangeDecryptor decryptor = JRangeDecryptor.open(cipherTransformation, secretKey, iv, encryptedFile)) {
+            decryptor.decrypt(90, 11, Channels.newChannel(new ByteArrayOutputStream()));
+            fail("range past the end was accepted");
+        } catch (IndexOutOfBoundsException expected) {
+            // [90, 101) 超過100 bytes
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHeaderlessPaddedOfb() throws Exception {
+        JCipherTransformation cipherTransformation = new JCipherTransformation("AES", "OFB", "PKCS5Padding", 16);
+        File encryptedFile = encrypt(cipherTransformation, plaintext(100), false);
+        JRangeDecryptor.open(cipherTransformation, secretKey, iv, encryptedFile).close();
+    }
+
+    /**
+     * 完整解密後與多個範圍的解密結果比對，範圍包含檔案開頭、結尾、block邊界兩側與跨多個chunk
+     */
+    private void assertRangesMatch(JCipherTransformation cipherTransformation, int size, boolean container) throws Exception {
+        byte[] plaintext = plaintext(size);
+        File encryptedFile = encrypt(cipherTransformation, plaintext, container);
+        byte[] decrypted = decryptFully(cipherTransformation, encryptedFile, container);
+        assertArrayEquals(cipherTransformation.getText() + " full decryption", plaintext, decrypted);
+
+        long[][] ranges = {
+                {0, size},
+                {0, 1},
+                {1, 15},
+                {15, 2},
+                {16, 16},
+                {17, 1000},
+                {size / 3, size / 3},
+                {size - 17, 17},
+                {size - 1, 1},
+                {size, 0},
+        };
+        try (JRangeDecryptor decryptor = JRangeDecryptor.open(cipherTransformation, secretKey, iv, encryptedFile)) {
+            assertEquals(cipherTransformation.getText() + " plaintext length", size, decryptor.getPlaintextLength());
+            for (long[] range : ranges) {
+                int offset = (int) range[0];
+                int length = (int) range[1];
+                byte[] expected = Arrays.copyOfRange(decrypted, offset, offset + length);
+                String message = String.format("%s [%d, %d)", cipherTransformation.getText(), offset, offset + length);
+
+                ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                decryptor.decrypt(offset, length, Channels.newChannel(sink));
+                assertArrayEquals(message + " to a channel", expected, sink.toByteArray());
+
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                assertEquals(message + " to a buffer", length, decryptor.decrypt(offset, buffer));
+                assertArrayEquals(message + " to a buffer", expected, buffer.array());
+            }
+        }
+    }
+
+    private byte[] plaintext(int size) {
+        byte[] plaintext = new byte[size];
+        new Random(size).nextBytes(plaintext);
+        return plaintext;
+    }
+
+    private File encrypt(JCipherTransformation cipherTransformation, byte[] plaintext, boolean container) throws IOException, GeneralSecurityException {
+        File plainFile = directory.resolve("plain.bin").toFile();
+        File encryptedFile = directory.resolve(cipherTransformation.operation + cipherTransformation.padding + (container ? ".enc" : ".raw")).toFile();
+        Files.write(plainFile.toPath(), plaintext);
+        if (container) {
+            JCryptoUtils.encryptToContainer(cipherTransformation, secretKey, iv, plainFile, encryptedFile);
+        } else {
+            JCryptoUtils.encrypt(cipherTransformation, secretKey, iv, plainFile, encryptedFile);
+        }
+        return encryptedFile;
+    }
+
+    private byte[] decryptFully(JCipherTransformation cipherTransformation, File encryptedFile, boolean container) throws IOException, GeneralSecurityException {
+        File decryptedFile = directory.resolve("decrypted.bin").toFile();
+        if (container) {
+            JCryptoUtils.decryptContainer(secretKey, encryptedFile, decryptedFile);
+        } else {
+            JCryptoUtils.decrypt(cipherTransformation, secretKey, iv, encryptedFile, decryptedFile);
+        }
+        return Files.readAllBytes(decryptedFile.toPath());
+    }
+}
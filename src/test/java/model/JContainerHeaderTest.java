@@ -0,0 +1,185 @@
+package model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * [JContainerHeader] 的序列化，以及長度欄位損壞的檔頭在配置記憶體前就被拒絕
+ */
+public class JContainerHeaderTest {
+    private static final JCipherTransformation CTR = new JCipherTransformation("AES", "CTR", "NoPadding", 16);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("header", ".enc");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    public void plaintextHeaderRoundTrip() throws IOException {
+        byte[] iv = new byte[16];
+        Arrays.fill(iv, (byte) 7);
+        JContainerHeader header = JContainerHeader.forPlaintext(CTR, iv, 1024, 5000);
+        // 檔頭之後接著密文
+        write(concat(header.toBytes(), new byte[5000]));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            assertTrue(JContainerHeader.isContainer(channel));
+            JContainerHeader read = JContainerHeader.read(channel);
+            assertEquals(CTR.getText(), read.cipherTransformation.getText());
+            assertEquals(16, read.cipherTransformation.ivSizeForBytes);
+            assertArrayEquals(iv, read.iv);
+            assertEquals(0, read.flags);
+            assertEquals(1024, read.chunkSize);
+            assertEquals(5000, read.plaintextLength);
+            assertArrayEquals(new long[]{0, 1024, 2048, 3072, 4096}, read.chunkOffsets);
+            assertEquals(header.toBytes().length, read.getDataOffset());
+        }
+    }
+
+    @Test
+    public void deflatedHeaderRoundTrip() throws IOException {
+        JContainerHeader header = JContainerHeader.forDeflated(CTR, new byte[16], 65536, 123456789L);
+        write(header.toBytes());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            JContainerHeader read = JContainerHeader.read(channel);
+            assertTrue(read.hasFlag(JContainerHeader.FLAG_DEFLATE));
+            assertFalse(read.hasFlag(JContainerHeader.FLAG_SEGMENTED_AEAD));
+            assertEquals(123456789L, read.plaintextLength);
+            assertEquals(0, read.chunkOffsets.length);
+        }
+    }
+
+    @Test
+    public void headerlessFileIsNotContainer() throws IOException {
+        write("plain text without a header".getBytes("UTF-8"));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            assertFalse(JContainerHeader.isContainer(channel));
+        }
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsNegativeIvLength() throws IOException {
+        write(rawHeader(-1, 1024, 0, 0));
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsOversizedIvLength() throws IOException {
+        write(rawHeader(Short.MAX_VALUE, 1024, 0, 0));
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsNonPositiveChunkSize() throws IOException {
+        write(rawHeader(16, 0, 10, 1));
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsNegativePlaintextLength() throws IOException {
+        write(rawHeader(16, 1024, -1, 0));
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsMoreChunksThanPlaintext() throws IOException {
+        // 2048 bytes最多2個chunk
+        write(rawHeader(16, 1024, 2048, 3));
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsChunkTableLargerThanFile() throws IOException {
+        // 長度欄位宣稱的chunk表超過檔案大小，不可先配置再讀到EOF
+        write(rawHeader(16, 1, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsDecreasingChunkOffsets() throws IOException {
+        byte[] header = rawHeader(16, 1024, 2048, 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(header);
+        out.writeLong(1024);
+        out.writeLong(0);
+        write(bytes.toByteArray());
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsTruncatedHeader() throws IOException {
+        byte[] header = JContainerHeader.forPlaintext(CTR, new byte[16], 1024, 5000).toBytes();
+        write(Arrays.copyOf(header, header.length - 4));
+        assertRejected();
+    }
+
+    private void assertRejected() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            JContainerHeader.read(channel);
+            fail("corrupt header was accepted");
+        } catch (IOException expected) {
+            // EOFException或corrupt container header
+        }
+    }
+
+    /**
+     * 依 [JContainerHeader.toBytes] 的格式直接寫出欄位，chunk表由呼叫者接在後面
+     */
+    private static byte[] rawHeader(int ivLength, int chunkSize, long plaintextLength, int chunkCount) throws IOException {
+        JContainerHeader valid = JContainerHeader.forPlaintext(CTR, new byte[0], 1, 0);
+        byte[] magic = Arrays.copyOf(valid.toBytes(), 8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(magic);
+        out.writeShort(JContainerHeader.VERSION);
+        out.writeUTF(CTR.algorithm);
+        out.writeUTF(CTR.operation);
+        out.writeUTF(CTR.padding);
+        out.writeShort(CTR.ivSizeForBytes);
+        out.writeShort(ivLength);
+        out.write(new byte[Math.max(0, Math.min(ivLength, 16))]);
+        out.writeInt(0);
+        out.writeInt(chunkSize);
+        out.writeLong(plaintextLength);
+        out.writeInt(chunkCount);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        Files.write(file.toPath(), bytes);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}